@@ -0,0 +1,31 @@
+package fi.solita.utils.concurrency;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+// Every parameter combination runs in a fresh fork, so installing BlockHound here does not leak into the other runs.
+@State(Scope.Thread)
+public abstract class BlockingDetectionParam {
+    @Param({"false", "true"})
+    public boolean blockHound;
+    
+    // "virtual" needs a runtime with virtual threads, so it's opt-in: -p dispatcherType=single,virtual
+    @Param({"single"})
+    public String dispatcherType;
+    
+    protected CoroutineDispatcher dispatcher;
+    
+    @Setup(Level.Trial)
+    public void setUpDispatcher() {
+        if (blockHound) {
+            Coroutine.installBlockingDetection();
+        }
+        if (dispatcherType.equals("virtual") && !ThreadPerCoroutineDispatcher.virtualThreadsAvailable()) {
+            throw new IllegalStateException("dispatcherType=virtual needs a runtime with virtual threads, run with -p dispatcherType=single");
+        }
+        dispatcher = dispatcherType.equals("virtual") ? new ThreadPerCoroutineDispatcher() : new SingleCarrierDispatcher();
+    }
+}
@@ -0,0 +1,121 @@
+package fi.solita.utils.concurrency;
+
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// throughput per element
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-XX:+AllowRedefinitionToAddDeleteMethods")
+public class GeneratorBenchmark extends BlockingDetectionParam {
+    private static final int ELEMENTS = 10_000;
+    
+    @Param({"1", "64"})
+    public int chunk;
+    
+    private static Generator<Integer> range(int count) {
+        return new Generator<>() {
+            @Override
+            public Integer get() {
+                for (int i = 0; i < count; ++i) {
+                    yield_(i);
+                }
+                return null;
+            }
+        };
+    }
+    
+    private static IntGenerator intRange(int count) {
+        return new IntGenerator() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    yieldInt(i);
+                }
+            }
+        };
+    }
+    
+    @Stackless
+    static class Range extends Generator<Integer> {
+        final int count;
+        
+        Range(int count) {
+            this.count = count;
+        }
+        
+        @Override
+        public Integer get() {
+            for (int i = 0; i < count; ++i) {
+                yield_(i);
+            }
+            return null;
+        }
+    }
+    
+    static Trampoline<Long> sum(int i, long acc) {
+        return i == ELEMENTS ? Trampoline.finished(acc) : Trampoline.step(() -> sum(i + 1, acc + i));
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(ELEMENTS)
+    public long generator() {
+        return Coroutine.start(dispatcher, () -> {
+            long sum = 0;
+            Iterator<Integer> it = range(ELEMENTS).iterator(chunk);
+            while (it.hasNext()) {
+                sum += it.next();
+            }
+            return sum;
+        }).join();
+    }
+    
+    // the same generator without boxing, one element per switch whatever the chunk
+    @Benchmark
+    @OperationsPerInvocation(ELEMENTS)
+    public long intGenerator() {
+        return Coroutine.start(dispatcher, () -> {
+            long sum = 0;
+            PrimitiveIterator.OfInt it = intRange(ELEMENTS).iterator();
+            while (it.hasNext()) {
+                sum += it.nextInt();
+            }
+            return sum;
+        }).join();
+    }
+    
+    // the same generator compiled into a state machine, iterated with plain method calls
+    @Benchmark
+    @OperationsPerInvocation(ELEMENTS)
+    public long stackless() {
+        long sum = 0;
+        Iterator<Integer> it = new GeneratorBenchmark_RangeStackless(ELEMENTS).iterator();
+        while (it.hasNext()) {
+            sum += it.next();
+        }
+        return sum;
+    }
+    
+    // baseline: the same loop as trampolined steps, without any switching
+    @Benchmark
+    @OperationsPerInvocation(ELEMENTS)
+    public long trampoline() {
+        return sum(0, 0).get();
+    }
+}
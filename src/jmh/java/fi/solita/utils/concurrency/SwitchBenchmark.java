@@ -0,0 +1,64 @@
+package fi.solita.utils.concurrency;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-XX:+AllowRedefinitionToAddDeleteMethods")
+public class SwitchBenchmark extends BlockingDetectionParam {
+    private static final int ROUND_TRIPS = 1000;
+    
+    private CoFunction<Integer,Integer> echo;
+    
+    @Setup(Level.Trial)
+    public void setUpEcho() {
+        echo = new CoFunction<Integer,Integer>() {
+            @Override
+            public Integer apply(Integer in) {
+                while (true) {
+                    in = yield_(in);
+                }
+            }
+        }.start(dispatcher, 0);
+    }
+    
+    // resumed from the benchmark thread, i.e. a hand-off between two threads
+    @Benchmark
+    public Integer yieldResume() {
+        return echo.resume(1);
+    }
+    
+    // resumed from another coroutine on the same carrier
+    @Benchmark
+    @OperationsPerInvocation(ROUND_TRIPS)
+    public Integer yieldResumeInsideCoroutine() {
+        return Coroutine.start(dispatcher, () -> {
+            int sum = 0;
+            for (int i = 0; i < ROUND_TRIPS; ++i) {
+                sum += echo.resume(i);
+            }
+            return sum;
+        }).join();
+    }
+    
+    @Benchmark
+    public Integer startJoin() {
+        return Coroutine.start(dispatcher, () -> 1).join();
+    }
+}
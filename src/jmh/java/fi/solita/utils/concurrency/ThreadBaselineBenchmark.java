@@ -0,0 +1,73 @@
+package fi.solita.utils.concurrency;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// What SwitchBenchmark's round trips compare against: a request and a reply through SynchronousQueues
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadBaselineBenchmark {
+    // "virtual" needs a runtime with virtual threads, so it's opt-in: -p threads=platform,virtual
+    @Param({"platform"})
+    public String threads;
+    
+    private final SynchronousQueue<Integer> requests = new SynchronousQueue<>();
+    private final SynchronousQueue<Integer> replies = new SynchronousQueue<>();
+    private Thread echo;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        ThreadFactory factory = threads.equals("virtual") ? ThreadPerCoroutineDispatcher.virtualThreadFactory() : Thread::new;
+        if (factory == null) {
+            // rather than a number for something else under this label
+            throw new IllegalStateException("threads=virtual needs a runtime with virtual threads, run with -p threads=platform");
+        }
+        echo = factory.newThread(() -> {
+            try {
+                while (true) {
+                    replies.put(requests.take());
+                }
+            } catch (InterruptedException e) {
+                // done
+            }
+        });
+        echo.start();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        echo.interrupt();
+    }
+    
+    @Benchmark
+    public Integer roundTrip() throws InterruptedException {
+        requests.put(1);
+        return replies.take();
+    }
+    
+    @Benchmark
+    public void startJoin() throws InterruptedException {
+        Thread t = new Thread(() -> {});
+        t.start();
+        t.join();
+    }
+}
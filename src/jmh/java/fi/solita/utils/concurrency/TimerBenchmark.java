@@ -0,0 +1,65 @@
+package fi.solita.utils.concurrency;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-XX:+AllowRedefinitionToAddDeleteMethods")
+public class TimerBenchmark extends BlockingDetectionParam {
+    private static final Runnable NOTHING = () -> {};
+    
+    private NaiveAsyncTimer timer;
+    private ScheduledExecutorService executor;
+    
+    @Setup(Level.Trial)
+    public void setUpTimers() {
+        timer = new NaiveAsyncTimer();
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDownTimers() {
+        executor.shutdownNow();
+    }
+    
+    // wake-up latency: anything above 1ms is overhead and jitter
+    @Benchmark
+    public void sleep() {
+        Coroutine.start(dispatcher, () -> timer.sleep(1, TimeUnit.MILLISECONDS)).join();
+    }
+    
+    @Benchmark
+    public void threadSleepBaseline() throws InterruptedException {
+        Thread.sleep(1);
+    }
+    
+    @Benchmark
+    public boolean scheduleAndCancel() {
+        return timer.schedule(10, TimeUnit.SECONDS, NOTHING).cancel();
+    }
+    
+    @Benchmark
+    public boolean scheduleAndCancelBaseline() {
+        ScheduledFuture<?> f = executor.schedule(NOTHING, 10, TimeUnit.SECONDS);
+        return f.cancel(false);
+    }
+}
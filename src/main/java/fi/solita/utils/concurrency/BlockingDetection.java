@@ -0,0 +1,47 @@
+package fi.solita.utils.concurrency;
+
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import reactor.blockhound.BlockHound;
+import reactor.blockhound.BlockHound.Builder;
+import reactor.blockhound.integration.BlockHoundIntegration;
+
+// only loaded when blocking detection is requested, so that BlockHound stays an optional dependency
+final class BlockingDetection {
+    private static final String REACTOR_INTEGRATION = "reactor.core.scheduler.ReactorBlockHoundIntegration";
+    
+    private static final AtomicBoolean installed = new AtomicBoolean(false);
+    
+    private BlockingDetection() {
+    }
+    
+    static void install() {
+        if (!installed.compareAndSet(false, true)) {
+            return;
+        }
+        Builder builder = BlockHound.builder()
+            .nonBlockingThreadPredicate(current -> current.or(it -> (it instanceof ForkJoinWorkerThread) || Carrier.current() != null))
+            .allowBlockingCallsInside("java.util.concurrent.ForkJoinPool", "awaitWork")
+            .allowBlockingCallsInside("java.util.concurrent.ForkJoinTask", "awaitDone")
+            .allowBlockingCallsInside(Coroutine.class.getName(), "assertRunning")
+            .allowBlockingCallsInside(HandOff.class.getName(), "block")
+            .allowBlockingCallsInside(Carrier.class.getName(), "acquireSlow");
+        
+        BlockHoundIntegration reactor = reactorIntegration();
+        if (reactor != null) {
+            reactor.applyTo(builder);
+        }
+        builder.install();
+    }
+    
+    // not through ServiceLoader, since that would also bring in BlockHound's own integrations which allow System.out
+    private static BlockHoundIntegration reactorIntegration() {
+        try {
+            return (BlockHoundIntegration) Class.forName(REACTOR_INTEGRATION).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // no reactor-core on the classpath
+            return null;
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package fi.solita.utils.concurrency;
 
-import reactor.blockhound.BlockingOperationError;
-
 public final class BlockingError extends Error {
-    BlockingError(BlockingOperationError original) {
+    private static final String BLOCKHOUND_ERROR = "reactor.blockhound.BlockingOperationError";
+    
+    BlockingError(Error original) {
         super(original.getMessage(), original);
     }
-    BlockingError(BlockingError original) {
-        super(original.getMessage(), original);
+    
+    // by name, so that BlockHound need not be on the classpath
+    static boolean isBlockHoundError(Throwable e) {
+        return e.getClass().getName().equals(BLOCKHOUND_ERROR);
     }
-}
\ No newline at end of file
+}
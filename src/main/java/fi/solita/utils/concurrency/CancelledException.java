@@ -0,0 +1,4 @@
+package fi.solita.utils.concurrency;
+
+public class CancelledException extends CoroutineException {
+}
\ No newline at end of file
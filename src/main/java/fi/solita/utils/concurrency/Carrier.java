@@ -0,0 +1,118 @@
+package fi.solita.utils.concurrency;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+final class Carrier {
+    static final class CarrierThread extends ForkJoinWorkerThread {
+        final Carrier carrier;
+        // see Coroutine.current
+        Coroutine<?,?> coroutine;
+
+        CarrierThread(ForkJoinPool pool, Carrier carrier) {
+            super(pool);
+            this.carrier = carrier;
+        }
+    }
+    
+    // ForkJoinPool's own limit
+    private static final int MAX_THREADS = 0x7fff;
+
+    // for thread-per-coroutine carriers whose threads cannot be subclassed
+    private static final ThreadLocal<Carrier> boundCarrier = new ThreadLocal<>();
+
+    static Carrier current() {
+        return Thread.currentThread() instanceof CarrierThread t ? t.carrier : boundCarrier.get();
+    }
+
+    final CoroutineDispatcher dispatcher;
+    final ForkJoinPool pool;
+    final AtomicReference<Coroutine<?,?>> running = new AtomicReference<>();
+    volatile Thread runningThread;
+    // number of times the running slot has been taken. Written by the owner only, sampled racily by StallDetector
+    long switches;
+
+    private final Executor executor;
+    private final ReadyQueue pending = new ReadyQueue();
+    private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+    Carrier(CoroutineDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        // Every blocked coroutine gets compensated for, never merely counted out of the parallelism: the
+        // pool could otherwise go idle with a pump still queued behind the blocked one.
+        this.pool = new ForkJoinPool(1, p -> new CarrierThread(p, this), null, false, 0, MAX_THREADS, MAX_THREADS, null, 60, TimeUnit.SECONDS);
+        this.executor = pool;
+    }
+    
+    Carrier(CoroutineDispatcher dispatcher, ThreadFactory threads) {
+        this.dispatcher = dispatcher;
+        this.pool = null;
+        this.executor = r -> threads.newThread(() -> {
+            boundCarrier.set(this);
+            r.run();
+        }).start();
+    }
+
+    // ownership token for production mode, see Coroutine.assertRunning for the checked variant
+    void acquire(Coroutine<?,?> c) {
+        if (!running.compareAndSet(null, c)) {
+            acquireSlow(c);
+        }
+        runningThread = Thread.currentThread();
+        switches++;
+    }
+    
+    void release() {
+        running.set(null);
+        Thread next = waiters.peek();
+        if (next != null) {
+            LockSupport.unpark(next);
+        }
+    }
+    
+    private void acquireSlow(Coroutine<?,?> c) {
+        Thread self = Thread.currentThread();
+        waiters.add(self);
+        try {
+            while (!running.compareAndSet(null, c)) {
+                LockSupport.park(this);
+            }
+        } finally {
+            waiters.remove(self);
+        }
+    }
+
+    boolean isIdle() {
+        return running.get() == null && pending.isEmpty();
+    }
+
+    // number of coroutines pending after this one was added
+    int enqueue(Coroutine<?,?> c) {
+        return pending.add(c);
+    }
+
+    Coroutine<?,?> poll() {
+        return pending.poll();
+    }
+
+    void pump() {
+        executor.execute(() -> {
+            Coroutine<?,?> c = dispatcher.next(this);
+            if (c != null) {
+                c.bodyTask().quietlyInvoke();
+            }
+        });
+    }
+    
+    @Override
+    public String toString() {
+        return pool == null ? "Carrier(thread per coroutine)" : "Carrier(running: " + pool.getRunningThreadCount() + ", active: " + pool.getActiveThreadCount() + ")";
+    }
+}
@@ -0,0 +1,397 @@
+package fi.solita.utils.concurrency;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Multi-producer multi-consumer channel. send and receive suspend the calling coroutine (outside
+// coroutines: block the thread) while the channel is full or empty. Values go directly to a waiting
+// receiver when there is one, otherwise through the buffer, or directly from a waiting sender.
+//
+// A waiter first registers itself and then re-checks the channel, while the other side first changes
+// the channel and then looks for waiters, so one of them always notices the other. Waiters are claimed
+// with a CAS, which lets a waiter that got what it wanted otherwise cancel itself safely. A coroutine
+// cancelled while waiting completes its hand-off first, so whoever claims its waiter afterwards moves on.
+public final class Channel<T> implements Iterable<T> {
+    private static final Object RETRY = new Object();
+    private static final Object TAKEN = new Object();
+    private static final Object CLOSED = new Object();
+
+    private static final VarHandle IS_CLOSED;
+    static {
+        try {
+            IS_CLOSED = MethodHandles.lookup().findVarHandle(Channel.class, "closed", boolean.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public static <T> Channel<T> rendezvous() {
+        return new Channel<>(new NoBuffer<>());
+    }
+
+    public static <T> Channel<T> bounded(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        return capacity == 0 ? rendezvous() : new Channel<>(new RingBuffer<>(capacity));
+    }
+
+    public static <T> Channel<T> unbounded() {
+        return new Channel<>(new LinkedBuffer<>());
+    }
+
+    private final Buffer<T> buffer;
+    private final Queue<Waiter> senders = new ConcurrentLinkedQueue<>();
+    private final Queue<Waiter> receivers = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    private Channel(Buffer<T> buffer) {
+        this.buffer = buffer;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Further sends fail. Receivers get what's already buffered, and then fail as well.
+    // Senders still waiting fail, and their values are dropped.
+    public void close() {
+        if (!IS_CLOSED.compareAndSet(this, false, true)) {
+            return;
+        }
+        wakeAll(receivers);
+        wakeAll(senders);
+    }
+
+    public void send(T value) throws ChannelClosedException {
+        Objects.requireNonNull(value);
+        while (true) {
+            if (trySend(value)) {
+                return;
+            }
+            Waiter w = new Waiter(value);
+            senders.add(w);
+            if ((closed || !receivers.isEmpty() || buffer.hasSpace()) && w.cancel()) {
+                continue;
+            }
+            Object result = Coroutine.suspend(w.result);
+            if (result == TAKEN) {
+                return;
+            }
+            if (result == CLOSED) {
+                throw new ChannelClosedException();
+            }
+        }
+    }
+
+    // false if the value could not be passed on without suspending
+    public boolean trySend(T value) throws ChannelClosedException {
+        Objects.requireNonNull(value);
+        if (closed) {
+            throw new ChannelClosedException();
+        }
+        for (Waiter w = receivers.poll(); w != null; w = receivers.poll()) {
+            // a cancelled receiver has completed its result already
+            if (w.claim() && w.complete(value)) {
+                return true;
+            }
+        }
+        if (buffer.offer(value)) {
+            // a receiver may have started waiting after we looked
+            wakeOne(receivers);
+            return true;
+        }
+        return false;
+    }
+
+    public T receive() throws ChannelClosedException {
+        while (true) {
+            T value = tryReceive();
+            if (value != null) {
+                return value;
+            }
+            Waiter w = new Waiter(null);
+            receivers.add(w);
+            if ((closed || !buffer.isEmpty() || !senders.isEmpty()) && w.cancel()) {
+                continue;
+            }
+            Object result = Coroutine.suspend(w.result);
+            if (result != RETRY && result != CLOSED) {
+                @SuppressWarnings("unchecked")
+                T ret = (T) result;
+                return ret;
+            }
+        }
+    }
+
+    // null if there was nothing to receive without suspending
+    public T tryReceive() throws ChannelClosedException {
+        boolean wasClosed = closed;
+        T value = buffer.poll();
+        if (value != null) {
+            // room for a sender waiting on a full buffer
+            wakeOne(senders);
+            return value;
+        }
+        for (Waiter w = senders.poll(); w != null; w = senders.poll()) {
+            if (w.claim() && w.complete(TAKEN)) {
+                @SuppressWarnings("unchecked")
+                T ret = (T) w.value;
+                return ret;
+            }
+        }
+        if (wasClosed) {
+            throw new ChannelClosedException();
+        }
+        return null;
+    }
+
+    // For Select: waits for a value like receive does, but completes the select's hand-off with the owner
+    // and leaves the value in the waiter. Completes it right away if something turned up meanwhile.
+    Waiter receiveFor(HandOff<Object> ready, Object owner) {
+        Waiter w = new Waiter(null, ready, owner);
+        receivers.add(w);
+        if ((closed || !buffer.isEmpty() || !senders.isEmpty()) && w.cancel()) {
+            w.received = RETRY;
+            ready.complete(owner);
+        }
+        return w;
+    }
+
+    // what a waiter of receiveFor got, null if there's nothing after all
+    T received(Waiter w) throws ChannelClosedException {
+        Object v = w.received;
+        if (v == RETRY || v == CLOSED) {
+            return tryReceive();
+        }
+        @SuppressWarnings("unchecked")
+        T ret = (T) v;
+        return ret;
+    }
+
+    // receives until the channel is closed
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private T next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = receive();
+                    } catch (ChannelClosedException e) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                T ret = next;
+                next = null;
+                return ret;
+            }
+        };
+    }
+
+    private static void wakeOne(Queue<Waiter> waiters) {
+        for (Waiter w = waiters.poll(); w != null; w = waiters.poll()) {
+            if (w.claim() && w.complete(RETRY)) {
+                return;
+            }
+        }
+    }
+
+    private static void wakeAll(Queue<Waiter> waiters) {
+        for (Waiter w = waiters.poll(); w != null; w = waiters.poll()) {
+            if (w.claim()) {
+                w.complete(CLOSED);
+            }
+        }
+    }
+
+    static final class Waiter {
+        private static final int WAITING = 0;
+        private static final int CLAIMED = 1;
+        private static final int CANCELLED = 2;
+
+        private static final VarHandle STATE;
+        static {
+            try {
+                STATE = MethodHandles.lookup().findVarHandle(Waiter.class, "state", int.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        // value being sent, null for receivers
+        final Object value;
+        // received value, or one of TAKEN, RETRY, CLOSED. With an owner, shared by the arms of a select
+        // and completed with the owner instead, the value left in received.
+        final HandOff<Object> result;
+        private final Object owner;
+        Object received;
+        private volatile int state;
+
+        Waiter(Object value) {
+            this(value, new HandOff<>(), null);
+        }
+
+        Waiter(Object value, HandOff<Object> result, Object owner) {
+            this.value = value;
+            this.result = result;
+            this.owner = owner;
+        }
+
+        // false if someone else completed the result first
+        boolean complete(Object v) {
+            if (owner == null) {
+                return result.complete(v);
+            }
+            // only read by whoever the completion wakes up
+            received = v;
+            return result.complete(owner);
+        }
+
+        boolean claim() {
+            return STATE.compareAndSet(this, WAITING, CLAIMED);
+        }
+
+        // false if already claimed, in which case the result is on its way
+        boolean cancel() {
+            return STATE.compareAndSet(this, WAITING, CANCELLED);
+        }
+    }
+
+    private static abstract class Buffer<T> {
+        abstract boolean offer(T value);
+        abstract T poll();
+        abstract boolean isEmpty();
+        abstract boolean hasSpace();
+    }
+
+    private static final class NoBuffer<T> extends Buffer<T> {
+        @Override
+        boolean offer(T value) {
+            return false;
+        }
+        @Override
+        T poll() {
+            return null;
+        }
+        @Override
+        boolean isEmpty() {
+            return true;
+        }
+        @Override
+        boolean hasSpace() {
+            return false;
+        }
+    }
+
+    private static final class LinkedBuffer<T> extends Buffer<T> {
+        private final Queue<T> values = new ConcurrentLinkedQueue<>();
+
+        @Override
+        boolean offer(T value) {
+            return values.offer(value);
+        }
+        @Override
+        T poll() {
+            return values.poll();
+        }
+        @Override
+        boolean isEmpty() {
+            return values.isEmpty();
+        }
+        @Override
+        boolean hasSpace() {
+            return true;
+        }
+    }
+
+    // Vyukov's bounded MPMC queue: each slot carries a sequence number telling
+    // whether it's ready to be written or read for a given position.
+    private static final class RingBuffer<T> extends Buffer<T> {
+        private final int capacity;
+        private final Object[] values;
+        private final AtomicLongArray sequences;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        RingBuffer(int capacity) {
+            this.capacity = capacity;
+            this.values = new Object[capacity];
+            this.sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; ++i) {
+                sequences.set(i, i);
+            }
+        }
+
+        @Override
+        boolean offer(T value) {
+            long pos = tail.get();
+            while (true) {
+                int i = (int) (pos % capacity);
+                long diff = sequences.get(i) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        values[i] = value;
+                        sequences.set(i, pos + 1);
+                        return true;
+                    }
+                    pos = tail.get();
+                } else if (diff < 0) {
+                    return false;
+                } else {
+                    pos = tail.get();
+                }
+            }
+        }
+
+        @Override
+        T poll() {
+            long pos = head.get();
+            while (true) {
+                int i = (int) (pos % capacity);
+                long diff = sequences.get(i) - (pos + 1);
+                if (diff == 0) {
+                    if (head.compareAndSet(pos, pos + 1)) {
+                        @SuppressWarnings("unchecked")
+                        T value = (T) values[i];
+                        values[i] = null;
+                        sequences.set(i, pos + capacity);
+                        return value;
+                    }
+                    pos = head.get();
+                } else if (diff < 0) {
+                    return null;
+                } else {
+                    pos = head.get();
+                }
+            }
+        }
+
+        @Override
+        boolean isEmpty() {
+            return tail.get() == head.get();
+        }
+
+        @Override
+        boolean hasSpace() {
+            return tail.get() - head.get() < capacity;
+        }
+    }
+}
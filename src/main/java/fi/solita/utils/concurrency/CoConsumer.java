@@ -10,7 +10,11 @@ public abstract class CoConsumer<IN> extends Coroutine<IN,Void> implements Consu
     }
     
     public CoConsumer<IN> start(IN in) throws AlreadyStartedException {
-        doStart(in);
+        return start(CoroutineDispatcher.current(), in);
+    }
+    
+    public CoConsumer<IN> start(CoroutineDispatcher dispatcher, IN in) throws AlreadyStartedException {
+        doStart(dispatcher, in);
         return this;
     }
     
@@ -23,7 +27,7 @@ public abstract class CoConsumer<IN> extends Coroutine<IN,Void> implements Consu
     }
     
     public void resume(IN in) throws AlreadyFinishedException {
-        doResume(in);
+        doResume(CoroutineDispatcher.current(), in);
     }
     
     @Override
@@ -0,0 +1,70 @@
+package fi.solita.utils.concurrency;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+
+// await suspends the calling coroutine instead of blocking its carrier until the count reaches zero,
+// see CoSync.
+public final class CoCountDownLatch extends CoSync {
+    private static final VarHandle COUNT;
+    static {
+        try {
+            COUNT = MethodHandles.lookup().findVarHandle(CoCountDownLatch.class, "count", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile int count;
+
+    public CoCountDownLatch(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count: " + count);
+        }
+        this.count = count;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void countDown() {
+        while (true) {
+            int c = count;
+            if (c == 0) {
+                return;
+            }
+            if (COUNT.compareAndSet(this, c, c - 1)) {
+                if (c == 1) {
+                    wake();
+                }
+                return;
+            }
+        }
+    }
+
+    public void await() throws CancelledException {
+        take(0, -1, TimeUnit.NANOSECONDS);
+    }
+
+    // false if the timeout expired first
+    public boolean await(long timeout, TimeUnit unit) throws CancelledException {
+        return take(0, Math.max(0, timeout), unit);
+    }
+
+    // nothing is taken, everyone passes once open
+    @Override
+    boolean tryTake(int ignored) {
+        return count == 0;
+    }
+
+    @Override
+    void untake(int ignored) {
+    }
+
+    @Override
+    public String toString() {
+        return "CoCountDownLatch(count: " + count + (hasWaiters() ? ", has waiters)" : ")");
+    }
+}
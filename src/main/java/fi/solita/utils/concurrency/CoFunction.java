@@ -10,7 +10,11 @@ public abstract class CoFunction<IN,OUT> extends Coroutine<IN,OUT> implements Fu
     }
     
     public CoFunction<IN,OUT> start(IN in) throws AlreadyStartedException {
-        doStart(in);
+        return start(CoroutineDispatcher.current(), in);
+    }
+    
+    public CoFunction<IN,OUT> start(CoroutineDispatcher dispatcher, IN in) throws AlreadyStartedException {
+        doStart(dispatcher, in);
         return this;
     }
     
@@ -23,6 +27,6 @@ public abstract class CoFunction<IN,OUT> extends Coroutine<IN,OUT> implements Fu
     }
     
     public OUT resume(IN in) throws AlreadyFinishedException {
-        return doResume(in);
+        return doResume(CoroutineDispatcher.current(), in);
     }
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package fi.solita.utils.concurrency;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Mutual exclusion between coroutines. lock suspends the calling coroutine instead of blocking its
+// carrier, see CoSync. Not reentrant, and not tied to an owner: any coroutine may unlock.
+public final class CoMutex extends CoSync {
+    private static final VarHandle LOCKED;
+    static {
+        try {
+            LOCKED = MethodHandles.lookup().findVarHandle(CoMutex.class, "locked", boolean.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile boolean locked;
+
+    public boolean isLocked() {
+        return locked;
+    }
+
+    public void lock() throws CancelledException {
+        take(0, -1, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean tryLock() {
+        return takeNow(0);
+    }
+
+    public boolean tryLock(long timeout, TimeUnit unit) throws CancelledException {
+        return take(0, Math.max(0, timeout), unit);
+    }
+
+    public void unlock() throws IllegalStateException {
+        if (!locked) {
+            throw new IllegalStateException("Not locked");
+        }
+        untake(0);
+        wake();
+    }
+
+    public <T> T withLock(Supplier<T> body) throws CancelledException {
+        lock();
+        try {
+            return body.get();
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    boolean tryTake(int ignored) {
+        return !locked && LOCKED.compareAndSet(this, false, true);
+    }
+
+    @Override
+    void untake(int ignored) {
+        locked = false;
+    }
+
+    @Override
+    public String toString() {
+        return "CoMutex(" + (locked ? "locked" : "unlocked") + (hasWaiters() ? ", has waiters)" : ")");
+    }
+}
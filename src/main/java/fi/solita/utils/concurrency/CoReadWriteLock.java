@@ -0,0 +1,105 @@
+package fi.solita.utils.concurrency;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+
+// Any number of readers or a single writer. Locking suspends the calling coroutine instead of blocking
+// its carrier, see CoSync. Fair: readers arriving after a waiting writer wait behind it, and consecutive
+// readers at the head of the queue are let in together. Not reentrant.
+public final class CoReadWriteLock extends CoSync {
+    private static final int READ = 0;
+    private static final int WRITE = 1;
+    // state while write locked, otherwise the number of readers
+    private static final int WRITER = -1;
+
+    private static final VarHandle STATE;
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(CoReadWriteLock.class, "state", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile int state;
+
+    public int getReadLockCount() {
+        return Math.max(0, state);
+    }
+
+    public boolean isWriteLocked() {
+        return state == WRITER;
+    }
+
+    public void lockRead() throws CancelledException {
+        take(READ, -1, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean tryLockRead() {
+        return takeNow(READ);
+    }
+
+    public boolean tryLockRead(long timeout, TimeUnit unit) throws CancelledException {
+        return take(READ, Math.max(0, timeout), unit);
+    }
+
+    public void unlockRead() throws IllegalStateException {
+        if (state <= 0) {
+            throw new IllegalStateException("Not read locked");
+        }
+        untake(READ);
+        wake();
+    }
+
+    public void lockWrite() throws CancelledException {
+        take(WRITE, -1, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean tryLockWrite() {
+        return takeNow(WRITE);
+    }
+
+    public boolean tryLockWrite(long timeout, TimeUnit unit) throws CancelledException {
+        return take(WRITE, Math.max(0, timeout), unit);
+    }
+
+    public void unlockWrite() throws IllegalStateException {
+        if (state != WRITER) {
+            throw new IllegalStateException("Not write locked");
+        }
+        untake(WRITE);
+        wake();
+    }
+
+    @Override
+    boolean tryTake(int arg) {
+        if (arg == WRITE) {
+            return state == 0 && STATE.compareAndSet(this, 0, WRITER);
+        }
+        while (true) {
+            int s = state;
+            if (s == WRITER) {
+                return false;
+            }
+            if (STATE.compareAndSet(this, s, s + 1)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    void untake(int arg) {
+        if (arg == WRITE) {
+            state = 0;
+        } else {
+            STATE.getAndAdd(this, -1);
+        }
+    }
+
+    @Override
+    public String toString() {
+        int s = state;
+        return "CoReadWriteLock(" + (s == WRITER ? "write locked" : s + " readers") + (hasWaiters() ? ", has waiters)" : ")");
+    }
+}
@@ -8,7 +8,11 @@ public abstract class CoRunnable extends Coroutine<Void,Void> implements Runnabl
     }
     
     public CoRunnable start() throws AlreadyStartedException {
-        doStart(null);
+        return start(CoroutineDispatcher.current());
+    }
+    
+    public CoRunnable start(CoroutineDispatcher dispatcher) throws AlreadyStartedException {
+        doStart(dispatcher, null);
         return this;
     }
     
@@ -21,7 +25,7 @@ public abstract class CoRunnable extends Coroutine<Void,Void> implements Runnabl
     }
     
     public void resume() throws AlreadyFinishedException {
-        doResume(null);
+        doResume(CoroutineDispatcher.current(), null);
     }
     
     @Override
@@ -0,0 +1,90 @@
+package fi.solita.utils.concurrency;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+
+// Semaphore whose acquire suspends the calling coroutine instead of blocking its carrier, see CoSync.
+// Fair: an acquire of several permits holds back the smaller ones queued after it.
+public final class CoSemaphore extends CoSync {
+    private static final VarHandle PERMITS;
+    static {
+        try {
+            PERMITS = MethodHandles.lookup().findVarHandle(CoSemaphore.class, "permits", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile int permits;
+
+    public CoSemaphore(int permits) {
+        if (permits < 0) {
+            throw new IllegalArgumentException("permits: " + permits);
+        }
+        this.permits = permits;
+    }
+
+    public int availablePermits() {
+        return permits;
+    }
+
+    public void acquire() throws CancelledException {
+        acquire(1);
+    }
+
+    public void acquire(int n) throws CancelledException {
+        take(checked(n), -1, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    public boolean tryAcquire(int n) {
+        return takeNow(checked(n));
+    }
+
+    public boolean tryAcquire(int n, long timeout, TimeUnit unit) throws CancelledException {
+        return take(checked(n), Math.max(0, timeout), unit);
+    }
+
+    public void release() {
+        release(1);
+    }
+
+    public void release(int n) {
+        untake(checked(n));
+        wake();
+    }
+
+    @Override
+    boolean tryTake(int n) {
+        while (true) {
+            int p = permits;
+            if (p < n) {
+                return false;
+            }
+            if (PERMITS.compareAndSet(this, p, p - n)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    void untake(int n) {
+        PERMITS.getAndAdd(this, n);
+    }
+
+    private static int checked(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("permits: " + n);
+        }
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return "CoSemaphore(permits: " + permits + (hasWaiters() ? ", has waiters)" : ")");
+    }
+}
@@ -10,7 +10,11 @@ public abstract class CoSupplier<OUT> extends Coroutine<Void,OUT> implements Sup
     }
     
     public CoSupplier<OUT> start() throws AlreadyStartedException {
-        doStart(null);
+        return start(CoroutineDispatcher.current());
+    }
+    
+    public CoSupplier<OUT> start(CoroutineDispatcher dispatcher) throws AlreadyStartedException {
+        doStart(dispatcher, null);
         return this;
     }
     
@@ -23,7 +27,7 @@ public abstract class CoSupplier<OUT> extends Coroutine<Void,OUT> implements Sup
     }
     
     public OUT resume() throws AlreadyFinishedException {
-        return doResume(null);
+        return doResume(CoroutineDispatcher.current(), null);
     }
     
     @Override
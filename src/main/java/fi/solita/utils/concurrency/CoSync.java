@@ -0,0 +1,114 @@
+package fi.solita.utils.concurrency;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+// Base of the suspending synchronizers. Whoever can't take what it asks for right away queues up and
+// suspends (outside coroutines: blocks the thread), so a carrier is never parked for a lock.
+//
+// Taking is a CAS on the subclass's state, which is all it costs when nobody is waiting. Waiters are
+// served strictly in arrival order: nobody takes past a waiter, and whoever gives something back hands
+// it to the waiters at the head of the queue. The queue itself is only touched under a short lock.
+//
+// A waiter whose hand-off completes with something else than GRANTED, i.e. times out or gets cancelled,
+// removes itself. A grant losing that race is given back.
+abstract class CoSync {
+    private static final Object GRANTED = new Object();
+    private static final Object TIMED_OUT = new Object();
+
+    private static final class Waiter {
+        final int arg;
+        final HandOff<Object> handOff = new HandOff<>();
+
+        Waiter(int arg) {
+            this.arg = arg;
+        }
+    }
+
+    // guarded by itself
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    // size of waiters, written under the lock. Checked without it by the fast paths.
+    private volatile int waiting;
+
+    // takes what arg asks for from the state if available, regardless of waiters
+    abstract boolean tryTake(int arg);
+
+    // gives back what tryTake took, without waking anyone
+    abstract void untake(int arg);
+
+    final boolean hasWaiters() {
+        return waiting > 0;
+    }
+
+    final int queueLength() {
+        return waiting;
+    }
+
+    // without waiting, and only if nobody's waiting already
+    final boolean takeNow(int arg) {
+        return waiting == 0 && tryTake(arg);
+    }
+
+    // false if the timeout expired first. A negative timeout waits for as long as it takes.
+    final boolean take(int arg, long timeout, TimeUnit unit) throws CancelledException {
+        if (takeNow(arg)) {
+            return true;
+        }
+        if (timeout == 0) {
+            return false;
+        }
+        Waiter w = new Waiter(arg);
+        synchronized (waiters) {
+            // announced before checking again, so someone giving back after our check sees us
+            waiting++;
+            if (waiters.isEmpty() && tryTake(arg)) {
+                waiting--;
+                return true;
+            }
+            waiters.add(w);
+        }
+        // completing the hand-off is short enough to do on the timer thread itself
+        NaiveAsyncTimer.Handle timer = timeout < 0 ? null
+            : Coroutine.scheduler.schedule(System.nanoTime(), timeout, unit, () -> w.handOff.complete(TIMED_OUT));
+        Object result = null;
+        try {
+            result = Coroutine.suspend(w.handOff);
+        } finally {
+            if (timer != null) {
+                timer.cancel();
+            }
+            if (result != GRANTED) {
+                synchronized (waiters) {
+                    if (waiters.remove(w)) {
+                        waiting--;
+                        // the ones behind may fit now
+                        grantLocked();
+                    }
+                }
+            }
+        }
+        return result == GRANTED;
+    }
+
+    // after giving back to the state
+    final void wake() {
+        if (waiting > 0) {
+            synchronized (waiters) {
+                grantLocked();
+            }
+        }
+    }
+
+    private void grantLocked() {
+        for (Waiter w = waiters.peek(); w != null; w = waiters.peek()) {
+            if (!tryTake(w.arg)) {
+                return;
+            }
+            waiters.poll();
+            waiting--;
+            if (!w.handOff.complete(GRANTED)) {
+                untake(w.arg);
+            }
+        }
+    }
+}
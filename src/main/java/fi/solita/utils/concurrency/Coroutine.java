@@ -1,40 +1,70 @@
 package fi.solita.utils.concurrency;
 
 import java.io.PrintStream;
-import java.util.Map;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.Optional;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ForkJoinTask;
-import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
-import reactor.blockhound.BlockHound;
-import reactor.blockhound.BlockHound.Builder;
-import reactor.blockhound.BlockingOperationError;
-import reactor.core.scheduler.ReactorBlockHoundIntegration;
-
 public abstract class Coroutine<IN,OUT> {
+    public static final String BLOCKING_DETECTION_PROPERTY = "fi.solita.utils.concurrency.blockhound";
+    
     static {
-        Builder builder = BlockHound.builder()
-            .nonBlockingThreadPredicate(current -> current.or(it -> (it instanceof ForkJoinWorkerThread)))
-            .allowBlockingCallsInside("java.util.concurrent.ForkJoinPool", "awaitWork")
-            .allowBlockingCallsInside("java.util.concurrent.ForkJoinTask", "awaitDone");
-        
-        new ReactorBlockHoundIntegration().applyTo(builder);
-        builder.install();
+        if (Boolean.getBoolean(BLOCKING_DETECTION_PROPERTY)) {
+            installBlockingDetection();
+        }
     }
     
+    // Instruments the JDK with BlockHound to fail blocking calls made on carrier threads.
+    // Meant for development and tests, see StallDetector for a lightweight production alternative.
+    public static void installBlockingDetection() {
+        try {
+            BlockingDetection.install();
+        } catch (NoClassDefFoundError e) {
+            throw new IllegalStateException("BlockHound (io.projectreactor.tools:blockhound) is not on the classpath", e);
+        }
+    }
     
-    
-    public static final PrintStream SystemOut = new PrintStream(new NaiveAsyncOutputStream(System.out));
+    public static final PrintStream SystemOut = new NaiveAsyncPrintStream(new NaiveAsyncOutputStream(System.out));
     
     public static final NaiveAsyncTimer scheduler = new NaiveAsyncTimer();
     
+    public static final CoroutineDispatcher dispatcher = CoroutineDispatcher.fromSystemProperty();
+    
+    public static final String MODE_PROPERTY = "fi.solita.utils.concurrency.mode";
+    
+    // how long a coroutine may wait to be started before it goes ahead of higher priorities, see ReadyQueue
+    public static final String MAX_QUEUE_WAIT_PROPERTY = "fi.solita.utils.concurrency.maxQueueWaitMillis";
+    
+    // "production" drops the diagnostic checks. Constant so that the JIT can fold them away.
+    static final boolean strict = !"production".equals(System.getProperty(MODE_PROPERTY, "strict"));
+    
     public static <OUT> CoSupplier<OUT> start(Supplier<OUT> supplier) {
+        return start(CoroutineDispatcher.current(), supplier);
+    }
+    
+    public static CoRunnable start(Runnable runnable) {
+        return start(CoroutineDispatcher.current(), runnable);
+    }
+    
+    public static <IN> CoConsumer<IN> start(IN in, Consumer<IN> function) {
+        return start(CoroutineDispatcher.current(), in, function);
+    }
+    
+    public static <IN,OUT> CoFunction<IN,OUT> start(IN in, Function<IN,OUT> function) {
+        return start(CoroutineDispatcher.current(), in, function);
+    }
+    
+    public static <OUT> CoSupplier<OUT> start(CoroutineDispatcher dispatcher, Supplier<OUT> supplier) {
         CoSupplier<OUT> c = new CoSupplier<>() {
             @Override
             public OUT get() {
@@ -49,11 +79,11 @@ public abstract class Coroutine<IN,OUT> {
                 }
             }
         };
-        c.doStart(null);
+        c.doStart(dispatcher, null);
         return c;
     }
     
-    public static CoRunnable start(Runnable runnable) {
+    public static CoRunnable start(CoroutineDispatcher dispatcher, Runnable runnable) {
         CoRunnable c = new CoRunnable() {
             @Override
             public void run() {
@@ -68,11 +98,11 @@ public abstract class Coroutine<IN,OUT> {
                 }
             }
         };
-        c.doStart(null);
+        c.doStart(dispatcher, null);
         return c;
     }
     
-    public static <IN> CoConsumer<IN> start(IN in, Consumer<IN> function) {
+    public static <IN> CoConsumer<IN> start(CoroutineDispatcher dispatcher, IN in, Consumer<IN> function) {
         CoConsumer<IN> c = new CoConsumer<>() {
             @Override
             public void accept(IN in) {
@@ -87,11 +117,11 @@ public abstract class Coroutine<IN,OUT> {
                 }
             }
         };
-        c.doStart(in);
+        c.doStart(dispatcher, in);
         return c;
     }
     
-    public static <IN,OUT> CoFunction<IN,OUT> start(IN in, Function<IN,OUT> function) {
+    public static <IN,OUT> CoFunction<IN,OUT> start(CoroutineDispatcher dispatcher, IN in, Function<IN,OUT> function) {
         CoFunction<IN,OUT> c = new CoFunction<>() {
             @Override
             public OUT apply(IN in) {
@@ -106,50 +136,166 @@ public abstract class Coroutine<IN,OUT> {
                 }
             }
         };
-        c.doStart(in);
+        c.doStart(dispatcher, in);
         return c;
     }
     
-    private static final ForkJoinPool pool = new ForkJoinPool(1);
-    
-    private static final AtomicReference<Map.Entry<Coroutine<?,?>,String>> running = new AtomicReference<>();
-    
     static void assertPool() {
-        if (!ForkJoinTask.inForkJoinPool()) {
-            throw new IllegalStateException("Not a ForkJoin Thread");
-        }
-        if (ForkJoinTask.getPool() != pool) {
-            throw new IllegalStateException("Running in wrong pool");
+        if (strict && Carrier.current() == null) {
+            throw new IllegalStateException(ForkJoinTask.inForkJoinPool() ? "Running in wrong pool" : "Not a carrier thread");
         }
     }
     
     private static void assertRunning(Coroutine<?,?> c, boolean set) {
-        if (!ForkJoinTask.inForkJoinPool()) {
+        Carrier carrier = Carrier.current();
+        if (carrier == null) {
             // skip if called outside coroutines
             return;
         }
+        if (!strict) {
+            if (set) {
+                carrier.acquire(c);
+            } else {
+                carrier.release();
+            }
+            return;
+        }
         
-        Map.Entry<Coroutine<?, ?>, String> previous = running.get();
-        while (previous != null && set) {
-            Thread.yield();
-            previous = running.get();
+        // Waiting for the carrier is legitimate: timers, channels and I/O wake coroutines independently,
+        // so several may be ready at once. What's checked is that the carrier changes hands properly.
+        Thread self = Thread.currentThread();
+        Coroutine<?,?> holder = carrier.running.get();
+        Thread holderThread = carrier.runningThread;
+        if (set && holder != null && holderThread == self) {
+            throw new IllegalStateException("Cannot run: " + c + "(" + self.getName() + ") since " + holder + " is already running in the same thread on " + carrier);
         }
-        previous = running.getAndSet(set ? new Map.Entry<>() {
-            private String threadName = Thread.currentThread().getName();
-            @Override
-            public Coroutine<?, ?> getKey() {
-                return c;
+        if (!set && (holder == null || holderThread != self)) {
+            throw new IllegalStateException("Cannot release " + carrier + " from " + c + "(" + self.getName() + ") since " + (holder == null ? "nobody" : holder + "(" + (holderThread == null ? "?" : holderThread.getName()) + ")") + " holds it");
+        }
+        if (set) {
+            carrier.acquire(c);
+        } else {
+            carrier.runningThread = null;
+            carrier.release();
+        }
+    }
+    
+    // The coroutine whose body runs in this thread. Carrier threads keep it in a field, so finding it is
+    // a type check and a read instead of a ThreadLocal lookup.
+    static Coroutine<?,?> current() {
+        return Thread.currentThread() instanceof Carrier.CarrierThread t ? t.coroutine : boundCoroutine.get();
+    }
+    
+    private static void setCurrent(Coroutine<?,?> c) {
+        if (Thread.currentThread() instanceof Carrier.CarrierThread t) {
+            t.coroutine = c;
+        } else {
+            boundCoroutine.set(c);
+        }
+    }
+    
+    // Parks the calling coroutine until the hand-off completes, leaving its carrier free for others
+    // meanwhile. Outside coroutines this simply blocks.
+    static <T> T suspend(HandOff<T> handOff) {
+        Carrier carrier = Carrier.current();
+        Coroutine<?,?> self = carrier == null ? null : carrier.running.get();
+        if (self == null) {
+            return handOff.join();
+        }
+        Coroutine<?,?> c = current();
+        CoroutineMetrics.Probe probe = null;
+        if (c != null) {
+            c.suspending(handOff);
+            probe = c.probe;
+        }
+        if (probe != null) {
+            probe.suspended();
+        }
+        assertRunning(self, false);
+        T ret;
+        try {
+            ret = handOff.join();
+        } finally {
+            assertRunning(self, true);
+            if (probe != null) {
+                probe.continued();
             }
-            public String getValue() {
-                return threadName;
+        }
+        return c == null ? ret : c.resumed(ret);
+    }
+    
+    // Suspends the calling coroutine until the stage completes, failing like CompletableFuture.join.
+    // Cancelling the coroutine stops the wait but leaves the stage running.
+    @SuppressWarnings("unchecked")
+    public static <T> T await(CompletionStage<T> stage) throws CancelledException, CompletionException, CancellationException {
+        if (stage instanceof CompletableFuture<T> f && f.isDone()) {
+            return f.join();
+        }
+        HandOff<Object> done = new HandOff<>();
+        stage.whenComplete((value, failure) -> done.complete(failure == null ? value : new Failed(failure)));
+        Object ret = suspend(done);
+        if (ret instanceof Failed f) {
+            if (f.failure instanceof CompletionException || f.failure instanceof CancellationException) {
+                throw (RuntimeException) f.failure;
             }
-            @Override
-            public String setValue(String value) {
-                throw new UnsupportedOperationException();
-            };
-        } : null);
-        if (previous != null && set) {
-            throw new IllegalStateException("Cannot run: " + c + "(" + Thread.currentThread().getName() + ") since " + previous + " was already running! Running: " + pool.getRunningThreadCount() + ", Active: " + pool.getActiveThreadCount());
+            throw new CompletionException(f.failure);
+        }
+        return (T) ret;
+    }
+    
+    private static final class Failed {
+        final Throwable failure;
+        
+        Failed(Throwable failure) {
+            this.failure = failure;
+        }
+    }
+    
+    // Makes the coroutine fail with CancelledException at its next suspension point, i.e. a yield or
+    // a wait for a timer, channel or I/O. One already suspended is woken up right away. Waiting for
+    // another coroutine in resume() or join() is not a suspension point.
+    public final void cancel() {
+        cancelled = true;
+        HandOff<?> h = suspendedOn;
+        if (h != null) {
+            cancel(h);
+        }
+    }
+    
+    public final boolean isCancelled() {
+        return cancelled;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static void cancel(HandOff<?> handOff) {
+        // first completion wins, so a value already on its way is not lost
+        ((HandOff<Object>) handOff).complete(CANCELLED);
+    }
+    
+    // Registers the hand-off the body is about to wait for. Either cancel() sees it,
+    // or this sees the cancellation and claims the hand-off itself.
+    private void suspending(HandOff<?> handOff) {
+        suspendedOn = handOff;
+        if (cancelled) {
+            cancel(handOff);
+        }
+    }
+    
+    private <T> T resumed(T value) {
+        suspendedOn = null;
+        CoroutineRegistry.Entry registration = this.registration;
+        if (registration != null) {
+            registration.resumed();
+        }
+        if (value == CANCELLED) {
+            throw new CancelledException();
+        }
+        return value;
+    }
+    
+    private void setState(State state) {
+        if (strict || registration != null) {
+            this.state = state;
         }
     }
     
@@ -158,7 +304,68 @@ public abstract class Coroutine<IN,OUT> {
         return name.map(x -> "Coroutine(" + state + "):" + x).orElse(super.toString());
     }
     
-    private enum State {
+    // Scheduling band when starting: higher ones start first. A coroutine started from within another
+    // inherits its priority and deadline unless set explicitly.
+    public enum Priority {
+        LOW,
+        NORMAL,
+        HIGH
+    }
+    
+    public final void setPriority(Priority priority) throws AlreadyStartedException {
+        if (isStarted()) {
+            throw new AlreadyStartedException();
+        }
+        this.priority = priority;
+    }
+    
+    // null until set or inherited when starting
+    public final Priority getPriority() {
+        return priority;
+    }
+    
+    // Coroutines of the same priority start earliest deadline first, before those without one. Only
+    // orders the start, see CoroutineScope.withTimeout for giving up.
+    public final void setDeadline(long timeout, TimeUnit unit) throws AlreadyStartedException {
+        if (isStarted()) {
+            throw new AlreadyStartedException();
+        }
+        this.deadline = System.nanoTime() + unit.toNanos(timeout);
+        this.hasDeadline = true;
+    }
+    
+    final Priority priority() {
+        return priority;
+    }
+    
+    final boolean hasDeadline() {
+        return hasDeadline;
+    }
+    
+    final long deadline() {
+        return deadline;
+    }
+    
+    final ForkJoinTask<OUT> bodyTask() {
+        return body;
+    }
+    
+    // Live coroutines started while CoroutineRegistry is enabled
+    public static String dump() {
+        return CoroutineRegistry.dump(false);
+    }
+    
+    // only tracked in strict mode, or when registered in CoroutineRegistry
+    final State state() {
+        return state;
+    }
+    
+    // waiting at a yield or for a timer, channel or I/O
+    final boolean isSuspended() {
+        return suspendedOn != null;
+    }
+    
+    enum State {
         UNINITIALIZED,
         IN_RESUME,
         IN_JOIN,
@@ -167,14 +374,54 @@ public abstract class Coroutine<IN,OUT> {
         OTHER
     }
     
+    // the coroutine whose body runs in this thread, for threads that aren't CarrierThreads
+    private static final ThreadLocal<Coroutine<?,?>> boundCoroutine = new ThreadLocal<>();
+    // completes the hand-off a cancelled coroutine is waiting for
+    private static final Object CANCELLED = new Object();
+    
+    private static final VarHandle WATCHERS;
+    static {
+        try {
+            WATCHERS = MethodHandles.lookup().findVarHandle(Coroutine.class, "watchers", Select.Watcher.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
     private ForkJoinTask<OUT> task;
+    // the task running the body, kept for the next run after reset()
+    private ForkJoinTask<OUT> body;
+    // argument for the body, handed over through the dispatcher queue
+    private IN input;
 
-    ForkJoinTask<IN> yieldLock;
-    ForkJoinTask<OUT> resumeLock;
+    final HandOff<IN> yieldLock = new HandOff<>();
+    final HandOff<OUT> resumeLock = new HandOff<>();
     
-    private final AtomicReference<State> state = new AtomicReference<>(State.UNINITIALIZED);
+    private volatile State state = State.UNINITIALIZED;
     private final AtomicBoolean finished = new AtomicBoolean(false);
     private final Optional<String> name;
+    // whether the value last returned from resume was the return value rather than a yield. Set by the
+    // resuming thread before letting the coroutine continue, which might then finish right away.
+    boolean returned;
+    // Started with start() rather than by the first resume, so the body runs to its first yield on its
+    // own and each resume takes the value yielded last. Written by the starter before dispatching.
+    private boolean ahead;
+    // non-null while measured, see CoroutineMetrics
+    private CoroutineMetrics.Probe probe;
+    private volatile boolean cancelled;
+    private volatile HandOff<?> suspendedOn;
+    // non-null while listed, see CoroutineRegistry
+    private CoroutineRegistry.Entry registration;
+    // selects waiting for the next yield or the end, see Select
+    private volatile Select.Watcher watchers;
+    // values of CoroutineLocals by slot, null if none. Copied before writing while shared with the parent.
+    Object[] locals;
+    boolean localsShared;
+    private Priority priority;
+    private boolean hasDeadline;
+    private long deadline;
+    // when put in the ReadyQueue
+    long enqueuedAt;
     
     public Coroutine() {
         this.name = Optional.empty();
@@ -191,54 +438,147 @@ public abstract class Coroutine<IN,OUT> {
         return finished.get();
     }
     
-    void releaseLocks(RuntimeException e) {
-        Coroutine.SystemOut.println("release locks");
-        e.printStackTrace();
-        if (resumeLock != null) {
-            resumeLock.complete(null);
+    // Makes a finished coroutine startable again, reusing its task and hand-offs instead of allocating
+    // a new coroutine. Whoever still holds this coroutine sees the new run, see CoroutinePool for
+    // handles which fail fast instead. Priority and deadline are cleared too.
+    public void reset() throws IllegalStateException {
+        if (!isFinished()) {
+            throw new IllegalStateException("Cannot reset an unfinished coroutine: " + this);
         }
-        if (yieldLock != null) {
-            yieldLock.complete(null);
+        ForkJoinTask<OUT> t = task;
+        if (t != null) {
+            // finished is set just before the body returns, wait for the task to complete too
+            while (!t.isDone()) {
+                Thread.yield();
+            }
+            t.reinitialize();
+            task = null;
         }
+        finished.set(false);
+        returned = false;
+        ahead = false;
+        probe = null;
+        registration = null;
+        priority = null;
+        hasDeadline = false;
+        cancelled = false;
+        suspendedOn = null;
+        watchers = null;
+        locals = null;
+        localsShared = false;
+        yieldLock.reset();
+        resumeLock.reset();
+        setState(State.UNINITIALIZED);
+    }
+    
+    // for coroutines run without a task, see Generator.step
+    void markFinished() {
+        finished.set(true);
+    }
+    
+    void releaseLocks(RuntimeException e) {
+        if (!(e instanceof CancelledException)) {
+            Coroutine.SystemOut.println("release locks of " + this);
+            e.printStackTrace();
+        }
+        resumeLock.complete(null);
+        yieldLock.complete(null);
     }
     
     IN doYield(OUT out) {
-        state.set(State.IN_YIELD);
+        setState(State.IN_YIELD);
         try {
             assertRunning(this, false);
             assertPool();
-            yieldLock = ForkJoinTask.adapt(() -> { throw new IllegalStateException("Shouldn't be here"); });
+            CoroutineMetrics.Probe probe = this.probe;
+            if (probe != null) {
+                probe.yielded();
+            }
+            yieldLock.reset();
+            suspending(yieldLock);
             resumeLock.complete(out);
+            notifyWatchers();
             IN ret = yieldLock.join();
+            if (probe != null) {
+                probe.resumed();
+            }
             assertRunning(this, true);
-            return ret;
+            return resumed(ret);
         } catch (RuntimeException e) {
             releaseLocks(e);
             throw e;
         } finally {
-            state.set(State.OTHER);
+            setState(State.OTHER);
         }
     }
     
-    void doStart(IN in) throws AlreadyStartedException {
-        state.set(State.IN_START);
+    void doStart(CoroutineDispatcher dispatcher, IN in) throws AlreadyStartedException {
+        setState(State.IN_START);
         try {
             if (isStarted()) {
                 throw new AlreadyStartedException();
             }
             finished.set(false);
-            resumeLock = ForkJoinTask.adapt(() -> { throw new IllegalStateException("Shouldn't be here"); });
-            task = pool.submit(() -> {
-                assertRunning(Coroutine.this, true);
-                try {
-                    return Coroutine.this.apply(in);
-                } finally {
-                    assertRunning(Coroutine.this, false);
-                    finished.set(true);
-                }
-            });
+            resumeLock.reset();
+            ahead = true;
+            task = dispatch(dispatcher, in);
         } finally {
-            state.set(State.OTHER);
+            setState(State.OTHER);
+        }
+    }
+    
+    private ForkJoinTask<OUT> dispatch(CoroutineDispatcher dispatcher, IN in) {
+        CoroutineMetrics.Probe probe = CoroutineMetrics.probe(name.orElse(CoroutineMetrics.UNNAMED));
+        this.probe = probe;
+        this.registration = CoroutineRegistry.register(this);
+        this.input = in;
+        if (body == null) {
+            body = ForkJoinTask.adapt(this::runBody);
+        }
+        Coroutine<?,?> parent = current();
+        if (priority == null) {
+            priority = parent == null ? Priority.NORMAL : parent.priority;
+        }
+        if (!hasDeadline && parent != null && parent.hasDeadline) {
+            deadline = parent.deadline;
+            hasDeadline = true;
+        }
+        CoroutineLocal.inherit(parent, this);
+        dispatcher.dispatch(this, probe);
+        return body;
+    }
+    
+    private OUT runBody() {
+        assertRunning(this, true);
+        Coroutine<?,?> outer = current();
+        setCurrent(this);
+        CoroutineMetrics.Probe probe = this.probe;
+        CoroutineRegistry.Entry registration = this.registration;
+        IN in = input;
+        input = null;
+        if (probe != null) {
+            probe.bodyStarted();
+        }
+        if (registration != null) {
+            registration.bodyStarted();
+        }
+        OUT result = null;
+        try {
+            // cancelled before starting: runs until the first suspension point like any other
+            result = apply(in);
+            return result;
+        } finally {
+            if (probe != null) {
+                probe.bodyFinished();
+            }
+            if (registration != null) {
+                registration.bodyFinished();
+            }
+            setCurrent(outer);
+            assertRunning(this, false);
+            finished.set(true);
+            resumeLock.complete(result);
+            notifyWatchers();
         }
     }
     
@@ -247,61 +587,94 @@ public abstract class Coroutine<IN,OUT> {
             throw new NotStartedException();
         }
         
-        state.set(State.IN_JOIN);
+        setState(State.IN_JOIN);
         try {
             assertRunning(this, false);
             try {
                 return task.join();
-            } catch (BlockingOperationError e) {
-                // catch and throw to get the whole stacktrace
-                throw new BlockingError(e);
             } catch (BlockingError e) {
                 // catch and throw to get the whole stacktrace
                 throw new BlockingError(e);
+            } catch (Error e) {
+                if (BlockingError.isBlockHoundError(e)) {
+                    throw new BlockingError(e);
+                }
+                throw e;
             } finally {
                 assertRunning(this, true);
             }
         } finally {
-            state.set(State.OTHER);
+            setState(State.OTHER);
         }
     }
     
-    OUT doResume(IN in) throws AlreadyFinishedException {
-        state.set(State.IN_RESUME);
+    OUT doResume(CoroutineDispatcher dispatcher, IN in) throws AlreadyFinishedException {
+        setState(State.IN_RESUME);
         try {
             if (isFinished()) {
                 throw new AlreadyFinishedException();
             }
             assertRunning(this, false);
-            resumeLock = ForkJoinTask.adapt(() -> { throw new IllegalStateException("Shouldn't be here"); });
-            boolean started = isStarted();
-            if (!started) {
-                task = pool.submit(() -> {
-                    assertRunning(Coroutine.this, true);
-                    OUT result = null;
-                    try {
-                        result = Coroutine.this.apply(in);
-                        return result;
-                    } finally {
-                        assertRunning(Coroutine.this, false);
-                        finished.set(true);
-                        resumeLock.complete(result);
-                    }
-                });
-            }
-            if (yieldLock != null) {
+            if (!isStarted()) {
+                // a fresh coroutine gets its input as the argument, not from a yield
+                ahead = false;
+                task = dispatch(dispatcher, in);
+            } else if (ahead) {
+                // Take the value yielded last, waiting for it if the body hasn't got that far yet, and only
+                // then let the coroutine proceed to its next yield. Completing yieldLock any earlier would
+                // lose the input to the reset in doYield.
+                OUT ret = resumeLock.join();
+                resumeLock.reset();
+                returned = isFinished();
+                handedOver();
+                yieldLock.complete(in);
+                assertRunning(this, true);
+                return ret;
+            } else {
                 yieldLock.complete(in);
             }
             
             OUT ret = resumeLock.join();
-            if (started) {
-                assertRunning(this, true);
-            }
+            resumeLock.reset();
+            returned = isFinished();
+            handedOver();
+            assertRunning(this, true);
             return ret;
         } finally {
-            state.set(State.OTHER);
+            setState(State.OTHER);
         }
     }
     
+    // Fires the watcher once the coroutine next yields or finishes. The caller checks afterwards
+    // whether it did already.
+    void watch(Select.Watcher w) {
+        while (true) {
+            Select.Watcher head = watchers;
+            // leaves out the ones of selects already done
+            Select.Watcher h = head;
+            while (h != null && h.isDone()) {
+                h = h.next;
+            }
+            w.next = h;
+            if (WATCHERS.compareAndSet(this, head, w)) {
+                return;
+            }
+        }
+    }
+    
+    private void notifyWatchers() {
+        if (watchers == null) {
+            return;
+        }
+        for (Select.Watcher w = (Select.Watcher) WATCHERS.getAndSet(this, null); w != null; w = w.next) {
+            w.fire();
+        }
+    }
+    
+    // Called by the resumer once the body has yielded or returned, while it can't yet continue.
+    // For taking values handed over in fields, see IntGenerator.
+    void handedOver() {
+    }
+    
     abstract OUT apply(IN in);
 }
@@ -0,0 +1,51 @@
+package fi.solita.utils.concurrency;
+
+import java.util.List;
+
+public abstract class CoroutineDispatcher {
+    public static final String PROPERTY = "fi.solita.utils.concurrency.dispatcher";
+    
+    static CoroutineDispatcher fromSystemProperty() {
+        String value = System.getProperty(PROPERTY, "single");
+        switch (value) {
+            case "single": return new SingleCarrierDispatcher();
+            case "sharded": return new ShardedDispatcher();
+            case "virtual": return new ThreadPerCoroutineDispatcher();
+            case "thread-per-coroutine": return new ThreadPerCoroutineDispatcher(true);
+            default: throw new IllegalArgumentException("Unknown " + PROPERTY + ": " + value);
+        }
+    }
+    
+    static CoroutineDispatcher current() {
+        Carrier carrier = Carrier.current();
+        return carrier == null ? Coroutine.dispatcher : carrier.dispatcher;
+    }
+    
+    CoroutineDispatcher() {
+    }
+    
+    // carrier on which a newly started coroutine gets pinned
+    abstract Carrier carrierFor();
+    
+    // every carrier of this dispatcher, for monitoring
+    abstract List<Carrier> carriers();
+    
+    // carrier which should pick up the work just queued to target
+    Carrier pumpFor(Carrier target) {
+        return target;
+    }
+    
+    // next unstarted coroutine for a carrier ready to take work
+    Coroutine<?,?> next(Carrier carrier) {
+        return carrier.poll();
+    }
+    
+    void dispatch(Coroutine<?,?> c, CoroutineMetrics.Probe probe) {
+        Carrier carrier = carrierFor();
+        int depth = carrier.enqueue(c);
+        if (probe != null) {
+            probe.queued(depth);
+        }
+        pumpFor(carrier).pump();
+    }
+}
@@ -0,0 +1,92 @@
+package fi.solita.utils.concurrency;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Like a ThreadLocal, but the value belongs to the running coroutine whichever thread carries it.
+// Outside coroutines it's per thread. A coroutine starts with a snapshot of the values of whoever
+// started it, so request context, MDC values or tracing ids follow the work.
+//
+// Each CoroutineLocal has a fixed slot in a small array of its coroutine, so reading one is an array
+// access. Slots are never reused, so CoroutineLocals are meant for static fields like ThreadLocals.
+// A child shares its parent's array until either one sets a value, making starting cheap.
+public final class CoroutineLocal<T> {
+    private static final AtomicInteger nextSlot = new AtomicInteger();
+    // values outside coroutines
+    private static final ThreadLocal<Object[]> threadValues = new ThreadLocal<>();
+
+    private final int slot = nextSlot.getAndIncrement();
+    private final Supplier<? extends T> initial;
+
+    public CoroutineLocal() {
+        this(() -> null);
+    }
+
+    private CoroutineLocal(Supplier<? extends T> initial) {
+        this.initial = initial;
+    }
+
+    public static <T> CoroutineLocal<T> withInitial(Supplier<? extends T> initial) {
+        return new CoroutineLocal<>(initial);
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get() {
+        Coroutine<?,?> c = Coroutine.current();
+        Object[] values = c == null ? threadValues.get() : c.locals;
+        if (values != null && slot < values.length) {
+            Object v = values[slot];
+            if (v != null) {
+                return (T) v;
+            }
+        }
+        T v = initial.get();
+        if (v != null) {
+            set(v);
+        }
+        return v;
+    }
+
+    public void set(T value) {
+        Coroutine<?,?> c = Coroutine.current();
+        if (c == null) {
+            threadValues.set(withValue(threadValues.get(), false, value));
+        } else {
+            c.locals = withValue(c.locals, c.localsShared, value);
+            c.localsShared = false;
+        }
+    }
+
+    public void remove() {
+        set(null);
+    }
+
+    // the array to write to, copied if it can't be written in place
+    private Object[] withValue(Object[] values, boolean shared, T value) {
+        if (values == null || slot >= values.length) {
+            if (value == null) {
+                return values;
+            }
+            values = values == null ? new Object[Math.max(slot + 1, 8)] : Arrays.copyOf(values, Math.max(slot + 1, 2 * values.length));
+        } else if (shared) {
+            values = values.clone();
+        }
+        values[slot] = value;
+        return values;
+    }
+
+    // called by the starter, from its own thread
+    static void inherit(Coroutine<?,?> parent, Coroutine<?,?> child) {
+        if (parent == null) {
+            // a thread keeps writing its own array in place, so the child gets a copy
+            Object[] values = threadValues.get();
+            child.locals = values == null ? null : values.clone();
+            child.localsShared = false;
+        } else {
+            child.locals = parent.locals;
+            child.localsShared = parent.locals != null;
+            parent.localsShared = child.localsShared;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package fi.solita.utils.concurrency;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Opt-in runtime statistics of coroutines, aggregated per coroutine name. Disabled by default, in which
+// case a coroutine only pays for a couple of null checks. Coroutines started while enabled are measured
+// until they finish.
+//
+// "Running" is the time a coroutine spends between being resumed and yielding (or finishing), excluding
+// time suspended on timers, channels or I/O. Waiting for another coroutine in resume() or join() counts
+// as running. "Suspended" is the rest of the time after the body has started.
+public final class CoroutineMetrics {
+    public static final String PROPERTY = "fi.solita.utils.concurrency.metrics";
+    public static final String JMX_DOMAIN = "fi.solita.utils.concurrency";
+    
+    static final String UNNAMED = "(unnamed)";
+    
+    static volatile boolean enabled = Boolean.getBoolean(PROPERTY);
+    
+    private static final Map<String,Stats> stats = new ConcurrentHashMap<>();
+    private static volatile MBeanServer mbeanServer;
+    
+    private CoroutineMetrics() {
+    }
+    
+    public static void enable() {
+        enabled = true;
+    }
+    
+    public static void disable() {
+        enabled = false;
+    }
+    
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    
+    // statistics of every name seen so far, sorted by name
+    public static Map<String,Stats> stats() {
+        return new TreeMap<>(stats);
+    }
+    
+    // null if no coroutine of this name has been started while enabled
+    public static Stats stats(String name) {
+        return stats.get(name);
+    }
+    
+    // forgets all statistics, and unregisters their MBeans
+    public static void reset() {
+        for (Stats s : stats.values()) {
+            unregister(s);
+        }
+        stats.clear();
+    }
+    
+    // Registers a CoroutineStatsMXBean for each name, including those seen later on,
+    // as fi.solita.utils.concurrency:type=CoroutineMetrics,name=<name>
+    public static synchronized void registerMBeans() {
+        if (mbeanServer != null) {
+            return;
+        }
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (Stats s : stats.values()) {
+            register(s);
+        }
+    }
+    
+    static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(JMX_DOMAIN + ":type=CoroutineMetrics,name=" + ObjectName.quote(name));
+        } catch (JMException e) {
+            throw new IllegalArgumentException(name, e);
+        }
+    }
+    
+    private static void register(Stats s) {
+        MBeanServer server = mbeanServer;
+        if (server != null) {
+            try {
+                server.registerMBean(s, objectName(s.name));
+            } catch (JMException e) {
+                // already registered by a concurrent registerMBeans
+            }
+        }
+    }
+    
+    private static void unregister(Stats s) {
+        MBeanServer server = mbeanServer;
+        if (server != null) {
+            try {
+                server.unregisterMBean(objectName(s.name));
+            } catch (JMException e) {
+                // never registered
+            }
+        }
+    }
+    
+    // null when disabled
+    static Probe probe(String name) {
+        if (!enabled) {
+            return null;
+        }
+        Stats s = stats.get(name);
+        if (s == null) {
+            Stats created = new Stats(name);
+            s = stats.putIfAbsent(name, created);
+            if (s == null) {
+                s = created;
+                register(s);
+            }
+        }
+        s.started.increment();
+        return new Probe(s, System.nanoTime());
+    }
+    
+    // Measurement state of a single coroutine. Apart from the constructor, only touched from the coroutine's own body.
+    static final class Probe {
+        final Stats stats;
+        private final long startedAt;
+        private long switchedAt;
+        
+        Probe(Stats stats, long startedAt) {
+            this.stats = stats;
+            this.startedAt = startedAt;
+        }
+        
+        void queued(int depth) {
+            stats.queueDepth.record(depth);
+        }
+        
+        void bodyStarted() {
+            long now = System.nanoTime();
+            stats.firstResumeNanos.record(now - startedAt);
+            stats.resumes.increment();
+            switchedAt = now;
+        }
+        
+        void bodyFinished() {
+            suspended();
+        }
+        
+        void yielded() {
+            stats.yields.increment();
+            suspended();
+        }
+        
+        void resumed() {
+            stats.resumes.increment();
+            continued();
+        }
+        
+        void suspended() {
+            long now = System.nanoTime();
+            stats.runningNanos.add(now - switchedAt);
+            switchedAt = now;
+        }
+        
+        void continued() {
+            long now = System.nanoTime();
+            stats.suspendedNanos.add(now - switchedAt);
+            switchedAt = now;
+        }
+    }
+    
+    public static final class Stats implements CoroutineStatsMXBean {
+        private final String name;
+        private final LongAdder started = new LongAdder();
+        private final LongAdder resumes = new LongAdder();
+        private final LongAdder yields = new LongAdder();
+        private final LongAdder runningNanos = new LongAdder();
+        private final LongAdder suspendedNanos = new LongAdder();
+        private final Histogram firstResumeNanos = new Histogram();
+        private final Histogram queueDepth = new Histogram();
+        
+        Stats(String name) {
+            this.name = name;
+        }
+        
+        @Override
+        public String getName() {
+            return name;
+        }
+        
+        @Override
+        public long getStarted() {
+            return started.sum();
+        }
+        
+        // including the first one starting the body
+        @Override
+        public long getResumes() {
+            return resumes.sum();
+        }
+        
+        @Override
+        public long getYields() {
+            return yields.sum();
+        }
+        
+        @Override
+        public long getRunningNanos() {
+            return runningNanos.sum();
+        }
+        
+        @Override
+        public long getSuspendedNanos() {
+            return suspendedNanos.sum();
+        }
+        
+        // from start() (or the first resume()) until the body begins to run
+        @Override
+        public Histogram getFirstResumeNanos() {
+            return firstResumeNanos;
+        }
+        
+        // unstarted coroutines on the carrier when one more was queued, including itself
+        @Override
+        public Histogram getQueueDepth() {
+            return queueDepth;
+        }
+        
+        @Override
+        public String toString() {
+            return name + "(started: " + getStarted() + ", resumes: " + getResumes() + ", yields: " + getYields()
+                + ", running: " + getRunningNanos() + "ns, suspended: " + getSuspendedNanos() + "ns"
+                + ", first resume: " + firstResumeNanos + "ns, queue depth: " + queueDepth + ")";
+        }
+    }
+    
+    // Log-linear buckets like HdrHistogram: values below 2^PRECISION_BITS are exact, larger
+    // ones are bucketed by their highest bits, i.e. with at most 1/2^PRECISION_BITS relative error.
+    // Recording is a couple of atomic increments, reading is racy but monotonic.
+    public static final class Histogram {
+        private static final int PRECISION_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+        private static final int BUCKETS = (Long.SIZE - PRECISION_BITS) * SUB_BUCKETS;
+        
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        
+        Histogram() {
+        }
+        
+        void record(long value) {
+            if (value < 0) {
+                // nanoTime differences across threads can be slightly off
+                value = 0;
+            }
+            counts.getAndIncrement(bucket(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+        
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - 1 - PRECISION_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+        
+        // highest value falling into the bucket
+        static long highestValue(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + (1l << shift) - 1;
+        }
+        
+        public long getCount() {
+            return count.sum();
+        }
+        
+        public long getMax() {
+            return max.get();
+        }
+        
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+        
+        public long getP50() {
+            return percentile(50);
+        }
+        
+        public long getP90() {
+            return percentile(90);
+        }
+        
+        public long getP99() {
+            return percentile(99);
+        }
+        
+        public long getP999() {
+            return percentile(99.9);
+        }
+        
+        // the value below or at which the given percentage of recorded values are, within the precision
+        public long percentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile: " + percentile);
+            }
+            long total = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                total += counts.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), getMax());
+                }
+            }
+            return getMax();
+        }
+        
+        @Override
+        public String toString() {
+            return "[p50: " + getP50() + ", p99: " + getP99() + ", max: " + getMax() + "]";
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package fi.solita.utils.concurrency;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+// Recycles the coroutines of short-lived bodies: joining a handle returns its coroutine to the pool
+// to be reset and reused by a later start. The handle is then stale, and any further use of it
+// throws StaleCoroutineException instead of touching the coroutine's next run.
+public final class CoroutinePool {
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final CoroutineDispatcher dispatcher;
+    // idle coroutines, null for empty slots
+    private final AtomicReferenceArray<Shell> idle;
+
+    public CoroutinePool() {
+        this(CoroutineDispatcher.current(), DEFAULT_CAPACITY);
+    }
+
+    public CoroutinePool(CoroutineDispatcher dispatcher, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        this.dispatcher = dispatcher;
+        this.idle = new AtomicReferenceArray<>(capacity);
+    }
+
+    public <OUT> Handle<OUT> start(Supplier<OUT> supplier) {
+        Shell shell = acquire();
+        shell.supplier = supplier;
+        return start(shell);
+    }
+
+    public Handle<Void> start(Runnable runnable) {
+        Shell shell = acquire();
+        shell.runnable = runnable;
+        return start(shell);
+    }
+
+    private <OUT> Handle<OUT> start(Shell shell) {
+        Handle<OUT> handle = new Handle<>(this, shell, shell.generation);
+        shell.start(dispatcher);
+        return handle;
+    }
+
+    int idleCount() {
+        int count = 0;
+        for (int i = 0; i < idle.length(); ++i) {
+            if (idle.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // threads start scanning from their own slot, so that one mostly gets back what it released
+    private int home() {
+        return Math.floorMod(Thread.currentThread().hashCode(), idle.length());
+    }
+
+    private Shell acquire() {
+        int n = idle.length();
+        int home = home();
+        for (int i = 0; i < n; ++i) {
+            int slot = (home + i) % n;
+            Shell shell = idle.get(slot);
+            if (shell != null && idle.compareAndSet(slot, shell, null)) {
+                return shell;
+            }
+        }
+        return new Shell();
+    }
+
+    private void release(Shell shell, int generation) {
+        // only the first join of a run recycles, and only once the body is done with the coroutine
+        synchronized (shell.recycling) {
+            if (!Shell.GENERATION.compareAndSet(shell, generation, generation + 1)) {
+                return;
+            }
+        }
+        shell.supplier = null;
+        shell.runnable = null;
+        shell.reset();
+        int n = idle.length();
+        int home = home();
+        for (int i = 0; i < n; ++i) {
+            int slot = (home + i) % n;
+            if (idle.get(slot) == null && idle.compareAndSet(slot, null, shell)) {
+                return;
+            }
+        }
+        // pool full, leave it for the GC
+    }
+
+    public static final class Handle<OUT> {
+        private static final VarHandle JOINING;
+        static {
+            try {
+                JOINING = MethodHandles.lookup().findVarHandle(Handle.class, "joining", boolean.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final CoroutinePool pool;
+        final Shell shell;
+        private final int generation;
+        // claimed by the one join allowed to recycle, so a concurrent one can't see the next run
+        private volatile boolean joining;
+
+        Handle(CoroutinePool pool, Shell shell, int generation) {
+            this.pool = pool;
+            this.shell = shell;
+            this.generation = generation;
+        }
+
+        // Waits for the body and returns the coroutine to the pool. Only the first join gets the result,
+        // one joining at the same time is as stale as one joining after it.
+        @SuppressWarnings("unchecked")
+        public OUT join() throws StaleCoroutineException, BlockingError {
+            Shell s = live();
+            if (!JOINING.compareAndSet(this, false, true)) {
+                throw new StaleCoroutineException();
+            }
+            try {
+                return (OUT) s.join();
+            } finally {
+                if (s.isFinished()) {
+                    pool.release(s, generation);
+                } else {
+                    // the joiner gave up, e.g. got cancelled, so someone else may still join
+                    joining = false;
+                }
+            }
+        }
+
+        // Checked and done under the lock release recycles under, so that a handle going stale meanwhile
+        // can't cancel or report on the next run
+        public void cancel() throws StaleCoroutineException {
+            synchronized (shell.recycling) {
+                live().cancel();
+            }
+        }
+
+        public boolean isCancelled() throws StaleCoroutineException {
+            synchronized (shell.recycling) {
+                return live().isCancelled();
+            }
+        }
+
+        public boolean isFinished() throws StaleCoroutineException {
+            synchronized (shell.recycling) {
+                return live().isFinished();
+            }
+        }
+
+        public boolean isStale() {
+            return shell.generation != generation;
+        }
+
+        private Shell live() {
+            if (isStale()) {
+                throw new StaleCoroutineException();
+            }
+            return shell;
+        }
+    }
+
+    static final class Shell extends CoSupplier<Object> {
+        static final VarHandle GENERATION;
+        static {
+            try {
+                GENERATION = MethodHandles.lookup().findVarHandle(Shell.class, "generation", int.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        // bumped on every recycle, invalidating the handles of earlier runs
+        volatile int generation;
+        // held while bumping the generation, and by handles while acting on the run they belong to
+        final Object recycling = new Object();
+        Supplier<?> supplier;
+        Runnable runnable;
+
+        @Override
+        public Object get() {
+            try {
+                assertPool();
+                if (runnable != null) {
+                    runnable.run();
+                    return null;
+                }
+                return supplier.get();
+            } catch (RuntimeException e) {
+                releaseLocks(e);
+                throw e;
+            } finally {
+                resumeLock.complete(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package fi.solita.utils.concurrency;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Opt-in registry of live coroutines for finding out what a stalled service is doing. Disabled by
+// default, in which case a coroutine only pays for a couple of null checks. Coroutines started while
+// enabled are listed until they finish.
+//
+// Registration pushes onto a lock-free list of weak references, so the registry never keeps a
+// coroutine alive. Finished entries are unlinked every now and then by whoever registers, and by dumps.
+public final class CoroutineRegistry {
+    public static final String PROPERTY = "fi.solita.utils.concurrency.registry";
+
+    static volatile boolean enabled = Boolean.getBoolean(PROPERTY);
+
+    private static final int PRUNE_INTERVAL = 1024;
+
+    private static final AtomicReference<Entry> head = new AtomicReference<>();
+    private static final AtomicInteger registrations = new AtomicInteger();
+    private static final AtomicBoolean pruning = new AtomicBoolean();
+    private static final AtomicBoolean mbeanRegistered = new AtomicBoolean();
+
+    private CoroutineRegistry() {
+    }
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // live coroutines registered so far, most recently started first
+    public static List<Coroutine<?,?>> live() {
+        List<Coroutine<?,?>> ret = new ArrayList<>();
+        for (Entry e = head.get(); e != null; e = e.next) {
+            Coroutine<?,?> c = e.get();
+            if (c != null && !e.finished) {
+                ret.add(c);
+            }
+        }
+        return ret;
+    }
+
+    // One line per live coroutine: its name and state, whether it is suspended and since when. With
+    // stacks, also where its body currently is, which costs a safepoint per coroutine.
+    public static String dump(boolean stacks) {
+        prune();
+        long now = System.nanoTime();
+        int count = 0;
+        StringBuilder sb = new StringBuilder();
+        for (Entry e = head.get(); e != null; e = e.next) {
+            Coroutine<?,?> c = e.get();
+            if (c == null || e.finished) {
+                continue;
+            }
+            count++;
+            sb.append(System.lineSeparator()).append(c)
+              .append(' ').append(c.state())
+              .append(c.isCancelled() ? " cancelled" : "")
+              .append(c.isSuspended() ? " suspended" : " not suspended")
+              .append(", started ").append(millisSince(now, e.startedAt)).append("ms ago");
+            long resumedAt = e.resumedAt;
+            sb.append(resumedAt == 0 ? ", not resumed since" : ", resumed " + millisSince(now, resumedAt) + "ms ago");
+            Thread thread = e.thread;
+            if (stacks && thread != null) {
+                sb.append(" in thread ").append(thread.getName());
+                for (StackTraceElement frame : thread.getStackTrace()) {
+                    sb.append(System.lineSeparator()).append("\tat ").append(frame);
+                }
+            }
+        }
+        return count + " live coroutines" + sb;
+    }
+
+    // registrations still linked, finished or not
+    static int entries() {
+        int count = 0;
+        for (Entry e = head.get(); e != null; e = e.next) {
+            count++;
+        }
+        return count;
+    }
+
+    // Registers a CoroutineRegistryMXBean as fi.solita.utils.concurrency:type=CoroutineRegistry,
+    // so that a dump can be taken with any JMX client, e.g. JConsole.
+    public static void registerMBean() {
+        if (!mbeanRegistered.compareAndSet(false, true)) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new MBean(), objectName());
+        } catch (JMException e) {
+            mbeanRegistered.set(false);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static ObjectName objectName() {
+        try {
+            return new ObjectName(CoroutineMetrics.JMX_DOMAIN + ":type=CoroutineRegistry");
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // null when disabled
+    static Entry register(Coroutine<?,?> c) {
+        if (!enabled) {
+            return null;
+        }
+        Entry e = new Entry(c, System.nanoTime());
+        Entry h;
+        do {
+            h = head.get();
+            e.next = h;
+        } while (!head.compareAndSet(h, e));
+        if (registrations.incrementAndGet() % PRUNE_INTERVAL == 0) {
+            prune();
+        }
+        return e;
+    }
+
+    // Unlinks finished entries, skipping it if someone else is already at it. Only ever touches the
+    // links after the head, so registrations can push concurrently.
+    private static void prune() {
+        if (!pruning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Entry prev = head.get();
+            if (prev == null) {
+                return;
+            }
+            for (Entry e = prev.next; e != null; e = e.next) {
+                if (e.finished || e.get() == null) {
+                    prev.next = e.next;
+                } else {
+                    prev = e;
+                }
+            }
+        } finally {
+            pruning.set(false);
+        }
+    }
+
+    private static long millisSince(long now, long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(now - nanos);
+    }
+
+    // Registration of a single coroutine. The times and thread are only written from the coroutine's own body.
+    static final class Entry extends WeakReference<Coroutine<?,?>> {
+        final long startedAt;
+        volatile long resumedAt;
+        // runs the body, null until it has started
+        volatile Thread thread;
+        volatile boolean finished;
+        volatile Entry next;
+
+        Entry(Coroutine<?,?> c, long startedAt) {
+            super(c);
+            this.startedAt = startedAt;
+        }
+
+        void bodyStarted() {
+            thread = Thread.currentThread();
+        }
+
+        void resumed() {
+            resumedAt = System.nanoTime();
+        }
+
+        void bodyFinished() {
+            finished = true;
+            thread = null;
+        }
+    }
+
+    private static final class MBean implements CoroutineRegistryMXBean {
+        @Override
+        public int getLiveCount() {
+            return live().size();
+        }
+
+        @Override
+        public String dump() {
+            return CoroutineRegistry.dump(false);
+        }
+
+        @Override
+        public String dumpWithStacks() {
+            return CoroutineRegistry.dump(true);
+        }
+    }
+}
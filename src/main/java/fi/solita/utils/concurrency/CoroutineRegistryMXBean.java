@@ -0,0 +1,8 @@
+package fi.solita.utils.concurrency;
+
+// Live coroutines, see CoroutineRegistry
+public interface CoroutineRegistryMXBean {
+    int getLiveCount();
+    String dump();
+    String dumpWithStacks();
+}
@@ -0,0 +1,175 @@
+package fi.solita.utils.concurrency;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+// Tracks the coroutines started through it, so that they can be joined and cancelled as a group.
+// The first child to fail cancels its siblings, and join rethrows that failure once all have finished.
+// A coroutine cancelled while joining a scope cancels the scope's children as well.
+// A child is only referenced by its scope until it finishes, so a long-lived scope doesn't leak.
+public final class CoroutineScope {
+    private static final Object FINISHED = new Object();
+
+    private final CoroutineDispatcher dispatcher;
+    // the unfinished ones
+    private final Set<Coroutine<?,?>> children = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicReference<CancelledException> cancellation = new AtomicReference<>();
+    private volatile boolean cancelled;
+    // the coroutine waiting in join, if any. Single joiner at a time.
+    private volatile HandOff<Void> idle;
+
+    public CoroutineScope() {
+        this(CoroutineDispatcher.current());
+    }
+
+    public CoroutineScope(CoroutineDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    // Runs the body as a child coroutine, cancelled once the timeout has passed. The body
+    // must reach a suspension point to notice the cancellation, see Coroutine.cancel.
+    public static <T> T withTimeout(long timeout, TimeUnit unit, Supplier<T> body) throws TimedOutException {
+        CoroutineScope scope = new CoroutineScope();
+        CoSupplier<T> child = scope.start(body);
+        NaiveAsyncTimer.Handle timer = Coroutine.scheduler.schedule(System.nanoTime(), timeout, unit, scope::cancel);
+        try {
+            scope.join();
+        } catch (CancelledException e) {
+            if (timer.isExpired()) {
+                throw new TimedOutException();
+            }
+            throw e;
+        } finally {
+            timer.cancel();
+        }
+        return child.join();
+    }
+
+    public static void withTimeout(long timeout, TimeUnit unit, Runnable body) throws TimedOutException {
+        withTimeout(timeout, unit, () -> {
+            body.run();
+            return null;
+        });
+    }
+
+    public <OUT> CoSupplier<OUT> start(Supplier<OUT> supplier) throws CancelledException {
+        starting();
+        AtomicReference<Object> membership = new AtomicReference<>();
+        return track(membership, Coroutine.start(dispatcher, () -> {
+            try {
+                return supplier.get();
+            } catch (RuntimeException | Error e) {
+                failed(e);
+                throw e;
+            } finally {
+                finished(membership);
+            }
+        }));
+    }
+
+    public CoRunnable start(Runnable runnable) throws CancelledException {
+        starting();
+        AtomicReference<Object> membership = new AtomicReference<>();
+        return track(membership, Coroutine.start(dispatcher, () -> {
+            try {
+                runnable.run();
+            } catch (RuntimeException | Error e) {
+                failed(e);
+                throw e;
+            } finally {
+                finished(membership);
+            }
+        }));
+    }
+
+    // Cancels every child, including ones started from now on
+    public void cancel() {
+        cancelled = true;
+        for (Coroutine<?,?> c : children) {
+            c.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Waits until every child has finished. Rethrows the first failure, or if there was none but
+    // some child was cancelled, a CancelledException.
+    public void join() throws CancelledException {
+        while (active.get() > 0) {
+            HandOff<Void> wakeUp = new HandOff<>();
+            idle = wakeUp;
+            if (active.get() == 0) {
+                break;
+            }
+            try {
+                Coroutine.suspend(wakeUp);
+            } catch (CancelledException e) {
+                // the joiner itself got cancelled, don't leave the children behind
+                cancel();
+                throw e;
+            } finally {
+                idle = null;
+            }
+        }
+        Throwable f = failure.get();
+        if (f instanceof Error e) {
+            throw e;
+        }
+        if (f != null) {
+            throw (RuntimeException) f;
+        }
+        CancelledException c = cancellation.get();
+        if (c != null) {
+            throw c;
+        }
+    }
+
+    private void starting() {
+        if (cancelled) {
+            throw new CancelledException();
+        }
+        active.incrementAndGet();
+    }
+
+    // The child may finish before it's added, so whichever of track and finished comes second
+    // removes it. The membership holds the child once added, or FINISHED once finished.
+    private <C extends Coroutine<?,?>> C track(AtomicReference<Object> membership, C child) {
+        children.add(child);
+        if (!membership.compareAndSet(null, child)) {
+            children.remove(child);
+        } else if (cancelled) {
+            // raced with cancel
+            child.cancel();
+        }
+        return child;
+    }
+
+    private void failed(Throwable e) {
+        if (e instanceof CancelledException c) {
+            cancellation.compareAndSet(null, c);
+        } else if (failure.compareAndSet(null, e)) {
+            cancel();
+        }
+    }
+
+    private void finished(AtomicReference<Object> membership) {
+        Object child = membership.getAndSet(FINISHED);
+        if (child != null) {
+            children.remove(child);
+        }
+        if (active.decrementAndGet() == 0) {
+            HandOff<Void> wakeUp = idle;
+            if (wakeUp != null) {
+                wakeUp.complete(null);
+            }
+        }
+    }
+}
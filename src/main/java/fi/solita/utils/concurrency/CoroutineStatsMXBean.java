@@ -0,0 +1,15 @@
+package fi.solita.utils.concurrency;
+
+import fi.solita.utils.concurrency.CoroutineMetrics.Histogram;
+
+// Statistics of coroutines of a single name, see CoroutineMetrics
+public interface CoroutineStatsMXBean {
+    String getName();
+    long getStarted();
+    long getResumes();
+    long getYields();
+    long getRunningNanos();
+    long getSuspendedNanos();
+    Histogram getFirstResumeNanos();
+    Histogram getQueueDepth();
+}
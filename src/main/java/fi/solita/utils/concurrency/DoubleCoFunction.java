@@ -0,0 +1,67 @@
+package fi.solita.utils.concurrency;
+
+import java.util.function.DoubleUnaryOperator;
+
+// CoFunction from double to double. Inputs and outputs are handed over in fields instead of through the
+// generic hand-off, so nothing gets boxed. The body is applyAsDouble yielding with yieldDouble.
+public abstract class DoubleCoFunction extends Coroutine<Void,Void> implements DoubleUnaryOperator {
+    // the argument, written before the body starts
+    private double initial;
+    // each written by one side before a switch, read or taken by the other before the writer can continue
+    private double in;
+    private double out;
+    private double taken;
+
+    public DoubleCoFunction() {
+    }
+    public DoubleCoFunction(String name) {
+        super(name);
+    }
+
+    public DoubleCoFunction start(double in) throws AlreadyStartedException {
+        return start(CoroutineDispatcher.current(), in);
+    }
+
+    public DoubleCoFunction start(CoroutineDispatcher dispatcher, double in) throws AlreadyStartedException {
+        if (isStarted()) {
+            throw new AlreadyStartedException();
+        }
+        this.initial = in;
+        doStart(dispatcher, null);
+        return this;
+    }
+
+    // hands out to the resumer, returns the input it resumes with
+    public double yieldDouble(double out) {
+        this.out = out;
+        doYield(null);
+        return in;
+    }
+
+    public double join() throws BlockingError, NotStartedException {
+        doJoin();
+        return out;
+    }
+
+    // the next yielded value, or the return value once the body has returned
+    public double resumeDouble(double in) throws AlreadyFinishedException {
+        if (isStarted()) {
+            this.in = in;
+        } else {
+            this.initial = in;
+        }
+        doResume(CoroutineDispatcher.current(), null);
+        return taken;
+    }
+
+    @Override
+    void handedOver() {
+        taken = out;
+    }
+
+    @Override
+    Void apply(Void ignored) {
+        out = applyAsDouble(initial);
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+package fi.solita.utils.concurrency;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.DoubleStream;
+import java.util.stream.StreamSupport;
+
+// Generator of doubles. Each value is handed over in a field instead of through the generic hand-off,
+// so nothing gets boxed. The body is run() yielding with yieldDouble.
+public abstract class DoubleGenerator extends CoRunnable {
+    // written by the body before each switch, taken by the consumer before the body can continue
+    private double value;
+    private double taken;
+
+    public DoubleGenerator() {
+    }
+    public DoubleGenerator(String name) {
+        super(name);
+    }
+    @Override
+    public DoubleGenerator start() throws AlreadyStartedException {
+        super.start();
+        return this;
+    }
+
+    @Override
+    public DoubleGenerator start(CoroutineDispatcher dispatcher) throws AlreadyStartedException {
+        super.start(dispatcher);
+        return this;
+    }
+
+    public void yieldDouble(double value) {
+        this.value = value;
+        yield_();
+    }
+
+    // the next value, NoSuchElementException when the body returned instead
+    public double resumeDouble() throws AlreadyFinishedException, NoSuchElementException {
+        resume();
+        if (returned) {
+            throw new NoSuchElementException();
+        }
+        return taken;
+    }
+
+    @Override
+    void handedOver() {
+        taken = value;
+    }
+
+    public PrimitiveIterator.OfDouble iterator() {
+        return new Elements();
+    }
+
+    public DoubleStream stream() {
+        return StreamSupport.doubleStream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED), false);
+    }
+
+    private final class Elements implements PrimitiveIterator.OfDouble {
+        private boolean hasNext;
+        private boolean exhausted;
+
+        @Override
+        public boolean hasNext() {
+            if (!hasNext && !exhausted) {
+                if (isFinished()) {
+                    exhausted = true;
+                } else {
+                    resume();
+                    hasNext = !returned;
+                    exhausted = returned;
+                }
+            }
+            return hasNext;
+        }
+
+        @Override
+        public double nextDouble() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            hasNext = false;
+            return taken;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package fi.solita.utils.concurrency;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// Generator combinators. None of them is a coroutine of its own: map, filter and flatMap are fused into
+// the source generator's body when it hasn't started yet, and everything else steps in the consumer
+// pulling from its upstream, so the only switches left are the ones of the source generators.
+final class Fused {
+    private Fused() {
+    }
+
+    // One stateless stage in a chain, handing its results to the next one and the last one to the end
+    abstract static class Stage {
+        Stage next;
+        Consumer<Object> end;
+
+        abstract void push(Object value);
+
+        final void pass(Object value) {
+            Stage n = next;
+            if (n == null) {
+                end.accept(value);
+            } else {
+                n.push(value);
+            }
+        }
+    }
+
+    static final class Map extends Stage {
+        private final Function<Object,?> f;
+
+        @SuppressWarnings("unchecked")
+        Map(Function<?,?> f) {
+            this.f = (Function<Object,?>) f;
+        }
+
+        @Override
+        void push(Object value) {
+            pass(f.apply(value));
+        }
+    }
+
+    static final class Filter extends Stage {
+        private final Predicate<Object> p;
+
+        @SuppressWarnings("unchecked")
+        Filter(Predicate<?> p) {
+            this.p = (Predicate<Object>) p;
+        }
+
+        @Override
+        void push(Object value) {
+            if (p.test(value)) {
+                pass(value);
+            }
+        }
+    }
+
+    static final class FlatMap extends Stage {
+        private final Function<Object,? extends Iterable<?>> f;
+
+        @SuppressWarnings("unchecked")
+        FlatMap(Function<?,? extends Iterable<?>> f) {
+            this.f = (Function<Object,? extends Iterable<?>>) f;
+        }
+
+        @Override
+        void push(Object value) {
+            for (Object v : f.apply(value)) {
+                pass(v);
+            }
+        }
+    }
+
+    // A combinator stepping in the consumer. Only runs as a coroutine if explicitly started as one.
+    abstract static class Stepped<T> extends Generator<T> {
+        @Override
+        protected final boolean isStackless() {
+            return true;
+        }
+
+        @Override
+        public T get() {
+            while (step(this::yield_)) {
+            }
+            return null;
+        }
+
+        @Override
+        void close() {
+            closeUpstream();
+            super.close();
+        }
+
+        abstract void closeUpstream();
+    }
+
+    // A chain of stages, either pushed into the upstream body or run here on each element pulled
+    static final class Pipeline<T> extends Stepped<T> {
+        private final Generator<?> upstream;
+        private final boolean pushed;
+        private final Stage first;
+        private final Stage last;
+        // results of the element last pulled, when not pushed
+        private final List<Object> pending;
+        private int taken;
+        private Iterator<?> elements;
+
+        private Pipeline(Generator<?> upstream, boolean pushed, Stage first, Stage last, List<Object> pending) {
+            this.upstream = upstream;
+            this.pushed = pushed;
+            this.first = first;
+            this.last = last;
+            this.pending = pending;
+        }
+
+        static <R> Generator<R> append(Generator<?> g, Stage stage) throws IllegalStateException {
+            g.combine();
+            if (g instanceof Pipeline) {
+                Pipeline<?> p = (Pipeline<?>) g;
+                if (p.elements == null && (!p.pushed || p.upstream.canFuse())) {
+                    // grows the chain instead of pulling from the previous pipeline
+                    stage.end = p.last.end;
+                    p.last.next = stage;
+                    return new Pipeline<>(p.upstream, p.pushed, p.first, stage, p.pending);
+                }
+            }
+            if (g.canFuse()) {
+                stage.end = g::emit;
+                g.stages = stage;
+                return new Pipeline<>(g, true, stage, stage, null);
+            }
+            List<Object> pending = new ArrayList<>();
+            stage.end = pending::add;
+            return new Pipeline<>(g, false, stage, stage, pending);
+        }
+
+        // a pushed chain runs ahead in the upstream body, a chunk per switch
+        @Override
+        public Iterator<T> iterator(int chunk) {
+            if (pushed && elements == null) {
+                elements = upstream.iterator(chunk);
+            }
+            return super.iterator(chunk);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected boolean step(Consumer<? super T> sink) {
+            if (elements == null) {
+                elements = upstream.iterator();
+            }
+            if (pushed) {
+                if (!elements.hasNext()) {
+                    return false;
+                }
+                sink.accept((T) elements.next());
+                return true;
+            }
+            while (taken == pending.size()) {
+                pending.clear();
+                taken = 0;
+                if (!elements.hasNext()) {
+                    return false;
+                }
+                first.push(elements.next());
+            }
+            Object ret = pending.set(taken++, null);
+            sink.accept((T) ret);
+            return true;
+        }
+
+        @Override
+        void closeUpstream() {
+            upstream.close();
+        }
+    }
+
+    static final class Take<T> extends Stepped<T> {
+        private final Generator<T> upstream;
+        private final long n;
+        private long taken;
+        private Iterator<T> elements;
+
+        Take(Generator<T> upstream, long n) {
+            this.upstream = upstream;
+            this.n = n;
+        }
+
+        @Override
+        protected boolean step(Consumer<? super T> sink) {
+            if (taken == n) {
+                return false;
+            }
+            if (elements == null) {
+                elements = upstream.iterator();
+            }
+            if (!elements.hasNext()) {
+                return false;
+            }
+            T value = elements.next();
+            if (++taken == n) {
+                // the rest is never asked for
+                upstream.close();
+            }
+            sink.accept(value);
+            return true;
+        }
+
+        @Override
+        void closeUpstream() {
+            upstream.close();
+        }
+    }
+
+    static final class Zip<A,B,R> extends Stepped<R> {
+        private final Generator<A> a;
+        private final Generator<B> b;
+        private final BiFunction<? super A, ? super B, ? extends R> f;
+        private Iterator<A> as;
+        private Iterator<B> bs;
+
+        Zip(Generator<A> a, Generator<B> b, BiFunction<? super A, ? super B, ? extends R> f) {
+            this.a = a;
+            this.b = b;
+            this.f = f;
+        }
+
+        @Override
+        protected boolean step(Consumer<? super R> sink) {
+            if (as == null) {
+                as = a.iterator();
+                bs = b.iterator();
+            }
+            if (!as.hasNext() || !bs.hasNext()) {
+                closeUpstream();
+                return false;
+            }
+            sink.accept(f.apply(as.next(), bs.next()));
+            return true;
+        }
+
+        @Override
+        void closeUpstream() {
+            a.close();
+            b.close();
+        }
+    }
+
+    static final class Window<T> extends Stepped<List<T>> {
+        private final Generator<T> upstream;
+        private final int size;
+        private Iterator<T> elements;
+
+        Window(Generator<T> upstream, int size) {
+            this.upstream = upstream;
+            this.size = size;
+        }
+
+        @Override
+        protected boolean step(Consumer<? super List<T>> sink) {
+            if (elements == null) {
+                elements = upstream.iterator();
+            }
+            List<T> window = new ArrayList<>(size);
+            while (window.size() < size && elements.hasNext()) {
+                window.add(elements.next());
+            }
+            if (window.isEmpty()) {
+                return false;
+            }
+            sink.accept(window);
+            return true;
+        }
+
+        @Override
+        void closeUpstream() {
+            upstream.close();
+        }
+    }
+}
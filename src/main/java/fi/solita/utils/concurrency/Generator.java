@@ -1,6 +1,29 @@
 package fi.solita.utils.concurrency;
 
-public abstract class Generator<OUT> extends CoSupplier<OUT> {
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Yielded values are the elements, the return value only marks the end when iterating.
+public abstract class Generator<OUT> extends CoSupplier<OUT> implements Iterable<OUT> {
+    // non-null when prefetching: yields fill this and only a full chunk switches back to the consumer
+    private Object[] prefetched;
+    private int prefetchedCount;
+    // map, filter and flatMap stages fused into this body, run by yield_ before the value leaves, see Fused
+    Fused.Stage stages;
+    // set once a combinator has taken over the elements
+    private boolean combined;
+    // where resume has a stackless body hand its values, created once
+    private Consumer<OUT> stepSink;
+    private OUT stepped;
+
     public Generator() {
     }
     public Generator(String name) {
@@ -11,4 +34,294 @@ public abstract class Generator<OUT> extends CoSupplier<OUT> {
         super.start();
         return this;
     }
-}
\ No newline at end of file
+
+    @Override
+    public Generator<OUT> start(CoroutineDispatcher dispatcher) throws AlreadyStartedException {
+        super.start(dispatcher);
+        return this;
+    }
+
+    // Overridden by the subclasses StacklessProcessor generates for @Stackless generators
+    protected boolean isStackless() {
+        return false;
+    }
+    
+    // Runs the compiled body until its next yield_ as a plain method call, handing the value to the sink.
+    // false once the body has returned.
+    protected boolean step(Consumer<? super OUT> sink) {
+        throw new UnsupportedOperationException(getClass() + " is not @Stackless");
+    }
+    
+    // a stackless generator never needs a coroutine unless it's explicitly started as one
+    boolean runsStackless() {
+        return isStackless() && !isStarted();
+    }
+    
+    @Override
+    public OUT resume() throws AlreadyFinishedException {
+        if (!runsStackless()) {
+            return super.resume();
+        }
+        if (isFinished()) {
+            throw new AlreadyFinishedException();
+        }
+        if (stepSink == null) {
+            stepSink = v -> stepped = v;
+        }
+        if (step(stepSink)) {
+            OUT ret = stepped;
+            stepped = null;
+            return ret;
+        }
+        finishedStackless();
+        return null;
+    }
+    
+    // The state of a @Stackless body lives in fields of the generated subclass, so it can't start over
+    @Override
+    public void reset() throws IllegalStateException {
+        if (isStackless()) {
+            throw new UnsupportedOperationException("Cannot reset a @Stackless generator: " + this);
+        }
+        super.reset();
+        prefetched = null;
+        prefetchedCount = 0;
+        stages = null;
+        combined = false;
+    }
+
+    private void finishedStackless() {
+        returned = true;
+        markFinished();
+    }
+    
+    @Override
+    public void yield_(OUT out) {
+        Fused.Stage s = stages;
+        if (s == null) {
+            emit(out);
+        } else {
+            s.push(out);
+        }
+    }
+
+    // hands a value to the consumer, past any fused stages
+    @SuppressWarnings("unchecked")
+    final void emit(Object out) {
+        Object[] buffer = prefetched;
+        if (buffer == null) {
+            super.yield_((OUT) out);
+            return;
+        }
+        buffer[prefetchedCount++] = out;
+        if (prefetchedCount == buffer.length) {
+            super.yield_(null);
+        }
+    }
+
+    // Combinators. The elements can be taken over only once, before iterating: the generator returned
+    // replaces this one. map, filter and flatMap run inside the body of a generator not yet started, so
+    // a chain of them costs no switches, and values filtered out never leave the body. take, zip and
+    // window, as well as any stage after them, run in the consumer as a stackless generator.
+    public <R> Generator<R> map(Function<? super OUT, ? extends R> f) {
+        return Fused.Pipeline.append(this, new Fused.Map(f));
+    }
+
+    public Generator<OUT> filter(Predicate<? super OUT> p) {
+        return Fused.Pipeline.append(this, new Fused.Filter(p));
+    }
+
+    public <R> Generator<R> flatMap(Function<? super OUT, ? extends Iterable<? extends R>> f) {
+        return Fused.Pipeline.append(this, new Fused.FlatMap(f));
+    }
+
+    // Stops after n elements, cancelling this generator if it has more
+    public Generator<OUT> take(long n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n: " + n);
+        }
+        combine();
+        return new Fused.Take<>(this, n);
+    }
+
+    // Pairs up elements until either generator runs out, cancelling the other one
+    public <U,R> Generator<R> zip(Generator<U> other, BiFunction<? super OUT, ? super U, ? extends R> f) {
+        if (other == this) {
+            throw new IllegalArgumentException("Cannot zip a generator with itself");
+        }
+        combine();
+        other.combine();
+        return new Fused.Zip<>(this, other, f);
+    }
+
+    // Consecutive elements in lists of the given size, the last one possibly shorter
+    public Generator<List<OUT>> window(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size: " + size);
+        }
+        combine();
+        return new Fused.Window<>(this, size);
+    }
+
+    final void combine() throws IllegalStateException {
+        if (combined) {
+            throw new IllegalStateException("Elements already taken over by a combinator: " + this);
+        }
+        combined = true;
+    }
+
+    // stages can be fused into a body which hasn't run yet
+    boolean canFuse() {
+        return !isStackless() && !isStarted();
+    }
+
+    // Lets go of the rest of the elements
+    void close() {
+        if (isStarted() && !isFinished()) {
+            cancel();
+        }
+    }
+
+    @Override
+    public Iterator<OUT> iterator() {
+        return new Elements<>(this);
+    }
+
+    // Lets the generator run ahead by up to chunk elements per switch. Values are then only
+    // available through the returned iterator, not from resume(). A generator already started
+    // has run ahead on its own, so it's iterated one element at a time instead.
+    public Iterator<OUT> iterator(int chunk) {
+        if (chunk < 1) {
+            throw new IllegalArgumentException("chunk: " + chunk);
+        }
+        if (prefetched == null && !isStarted() && !isStackless()) {
+            prefetched = new Object[chunk];
+        }
+        return new Elements<>(this);
+    }
+
+    @Override
+    public Spliterator<OUT> spliterator() {
+        return new Elements<>(this);
+    }
+
+    public Stream<OUT> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    public Stream<OUT> stream(int chunk) {
+        return StreamSupport.stream((Elements<OUT>) iterator(chunk), false);
+    }
+
+    private static final class Elements<OUT> implements Iterator<OUT>, Spliterator<OUT>, Consumer<OUT> {
+        private final Generator<OUT> generator;
+        private int index;
+        private boolean hasNext;
+        private boolean exhausted;
+        private OUT next;
+
+        Elements(Generator<OUT> generator) {
+            this.generator = generator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!hasNext && !exhausted) {
+                hasNext = advance();
+                exhausted = !hasNext;
+            }
+            return hasNext;
+        }
+
+        @Override
+        public OUT next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            OUT ret = next;
+            next = null;
+            hasNext = false;
+            return ret;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super OUT> action) {
+            if (!hasNext()) {
+                return false;
+            }
+            action.accept(next());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super OUT> action) {
+            while (hasNext()) {
+                action.accept(next());
+            }
+        }
+
+        @Override
+        public Spliterator<OUT> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED;
+        }
+
+        // from a stackless step
+        @Override
+        public void accept(OUT value) {
+            next = value;
+        }
+        
+        @SuppressWarnings("unchecked")
+        private boolean takePrefetched() {
+            Object[] buffer = generator.prefetched;
+            if (buffer == null || index >= generator.prefetchedCount) {
+                return false;
+            }
+            next = (OUT) buffer[index];
+            buffer[index++] = null;
+            return true;
+        }
+
+        private boolean advance() {
+            if (generator.runsStackless()) {
+                if (generator.isFinished()) {
+                    return false;
+                }
+                if (generator.step(this)) {
+                    return true;
+                }
+                generator.finishedStackless();
+                return false;
+            }
+            if (takePrefetched()) {
+                return true;
+            }
+            if (generator.isFinished()) {
+                return false;
+            }
+            // buffer consumed, let the generator refill it
+            generator.prefetchedCount = 0;
+            index = 0;
+            OUT value = generator.resume();
+            if (takePrefetched()) {
+                // a prefetched chunk, the resumed value is only the switch
+                return true;
+            }
+            if (generator.returned) {
+                return false;
+            }
+            next = value;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package fi.solita.utils.concurrency;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.LockSupport;
+
+// One-shot completable value which can be re-armed with reset(), so that
+// switches between coroutines don't need a new task each. Single waiter only.
+final class HandOff<T> implements ForkJoinPool.ManagedBlocker {
+    private static final int EMPTY = 0;
+    private static final int COMPLETING = 1;
+    private static final int DONE = 2;
+    
+    private static final VarHandle STATE;
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(HandOff.class, "state", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    private volatile int state;
+    private volatile Thread waiter;
+    private T value;
+    
+    void reset() {
+        value = null;
+        state = EMPTY;
+    }
+    
+    boolean isDone() {
+        return state == DONE;
+    }
+    
+    // first completion wins, like ForkJoinTask.complete on a fresh task
+    boolean complete(T value) {
+        if (!STATE.compareAndSet(this, EMPTY, COMPLETING)) {
+            return false;
+        }
+        this.value = value;
+        state = DONE;
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        return true;
+    }
+    
+    T join() {
+        if (state != DONE) {
+            try {
+                // lets a ForkJoin carrier compensate for the blocked thread
+                ForkJoinPool.managedBlock(this);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        return value;
+    }
+    
+    @Override
+    public boolean isReleasable() {
+        return state == DONE;
+    }
+    
+    @Override
+    public boolean block() {
+        boolean interrupted = false;
+        waiter = Thread.currentThread();
+        try {
+            while (state != DONE) {
+                LockSupport.park(this);
+                interrupted |= Thread.interrupted();
+            }
+        } finally {
+            waiter = null;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,67 @@
+package fi.solita.utils.concurrency;
+
+import java.util.function.IntUnaryOperator;
+
+// CoFunction from int to int. Inputs and outputs are handed over in fields instead of through the
+// generic hand-off, so nothing gets boxed. The body is applyAsInt yielding with yieldInt.
+public abstract class IntCoFunction extends Coroutine<Void,Void> implements IntUnaryOperator {
+    // the argument, written before the body starts
+    private int initial;
+    // each written by one side before a switch, read or taken by the other before the writer can continue
+    private int in;
+    private int out;
+    private int taken;
+
+    public IntCoFunction() {
+    }
+    public IntCoFunction(String name) {
+        super(name);
+    }
+
+    public IntCoFunction start(int in) throws AlreadyStartedException {
+        return start(CoroutineDispatcher.current(), in);
+    }
+
+    public IntCoFunction start(CoroutineDispatcher dispatcher, int in) throws AlreadyStartedException {
+        if (isStarted()) {
+            throw new AlreadyStartedException();
+        }
+        this.initial = in;
+        doStart(dispatcher, null);
+        return this;
+    }
+
+    // hands out to the resumer, returns the input it resumes with
+    public int yieldInt(int out) {
+        this.out = out;
+        doYield(null);
+        return in;
+    }
+
+    public int join() throws BlockingError, NotStartedException {
+        doJoin();
+        return out;
+    }
+
+    // the next yielded value, or the return value once the body has returned
+    public int resumeInt(int in) throws AlreadyFinishedException {
+        if (isStarted()) {
+            this.in = in;
+        } else {
+            this.initial = in;
+        }
+        doResume(CoroutineDispatcher.current(), null);
+        return taken;
+    }
+
+    @Override
+    void handedOver() {
+        taken = out;
+    }
+
+    @Override
+    Void apply(Void ignored) {
+        out = applyAsInt(initial);
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+package fi.solita.utils.concurrency;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+// Generator of ints. Each value is handed over in a field instead of through the generic hand-off,
+// so nothing gets boxed. The body is run() yielding with yieldInt.
+public abstract class IntGenerator extends CoRunnable {
+    // written by the body before each switch, taken by the consumer before the body can continue
+    private int value;
+    private int taken;
+
+    public IntGenerator() {
+    }
+    public IntGenerator(String name) {
+        super(name);
+    }
+    @Override
+    public IntGenerator start() throws AlreadyStartedException {
+        super.start();
+        return this;
+    }
+
+    @Override
+    public IntGenerator start(CoroutineDispatcher dispatcher) throws AlreadyStartedException {
+        super.start(dispatcher);
+        return this;
+    }
+
+    public void yieldInt(int value) {
+        this.value = value;
+        yield_();
+    }
+
+    // the next value, NoSuchElementException when the body returned instead
+    public int resumeInt() throws AlreadyFinishedException, NoSuchElementException {
+        resume();
+        if (returned) {
+            throw new NoSuchElementException();
+        }
+        return taken;
+    }
+
+    @Override
+    void handedOver() {
+        taken = value;
+    }
+
+    public PrimitiveIterator.OfInt iterator() {
+        return new Elements();
+    }
+
+    public IntStream stream() {
+        return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED), false);
+    }
+
+    private final class Elements implements PrimitiveIterator.OfInt {
+        private boolean hasNext;
+        private boolean exhausted;
+
+        @Override
+        public boolean hasNext() {
+            if (!hasNext && !exhausted) {
+                if (isFinished()) {
+                    exhausted = true;
+                } else {
+                    resume();
+                    hasNext = !returned;
+                    exhausted = returned;
+                }
+            }
+            return hasNext;
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            hasNext = false;
+            return taken;
+        }
+    }
+}
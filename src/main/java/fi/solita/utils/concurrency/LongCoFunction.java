@@ -0,0 +1,67 @@
+package fi.solita.utils.concurrency;
+
+import java.util.function.LongUnaryOperator;
+
+// CoFunction from long to long. Inputs and outputs are handed over in fields instead of through the
+// generic hand-off, so nothing gets boxed. The body is applyAsLong yielding with yieldLong.
+public abstract class LongCoFunction extends Coroutine<Void,Void> implements LongUnaryOperator {
+    // the argument, written before the body starts
+    private long initial;
+    // each written by one side before a switch, read or taken by the other before the writer can continue
+    private long in;
+    private long out;
+    private long taken;
+
+    public LongCoFunction() {
+    }
+    public LongCoFunction(String name) {
+        super(name);
+    }
+
+    public LongCoFunction start(long in) throws AlreadyStartedException {
+        return start(CoroutineDispatcher.current(), in);
+    }
+
+    public LongCoFunction start(CoroutineDispatcher dispatcher, long in) throws AlreadyStartedException {
+        if (isStarted()) {
+            throw new AlreadyStartedException();
+        }
+        this.initial = in;
+        doStart(dispatcher, null);
+        return this;
+    }
+
+    // hands out to the resumer, returns the input it resumes with
+    public long yieldLong(long out) {
+        this.out = out;
+        doYield(null);
+        return in;
+    }
+
+    public long join() throws BlockingError, NotStartedException {
+        doJoin();
+        return out;
+    }
+
+    // the next yielded value, or the return value once the body has returned
+    public long resumeLong(long in) throws AlreadyFinishedException {
+        if (isStarted()) {
+            this.in = in;
+        } else {
+            this.initial = in;
+        }
+        doResume(CoroutineDispatcher.current(), null);
+        return taken;
+    }
+
+    @Override
+    void handedOver() {
+        taken = out;
+    }
+
+    @Override
+    Void apply(Void ignored) {
+        out = applyAsLong(initial);
+        return null;
+    }
+}
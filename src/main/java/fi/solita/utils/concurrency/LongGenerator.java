@@ -0,0 +1,88 @@
+package fi.solita.utils.concurrency;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+// Generator of longs. Each value is handed over in a field instead of through the generic hand-off,
+// so nothing gets boxed. The body is run() yielding with yieldLong.
+public abstract class LongGenerator extends CoRunnable {
+    // written by the body before each switch, taken by the consumer before the body can continue
+    private long value;
+    private long taken;
+
+    public LongGenerator() {
+    }
+    public LongGenerator(String name) {
+        super(name);
+    }
+    @Override
+    public LongGenerator start() throws AlreadyStartedException {
+        super.start();
+        return this;
+    }
+
+    @Override
+    public LongGenerator start(CoroutineDispatcher dispatcher) throws AlreadyStartedException {
+        super.start(dispatcher);
+        return this;
+    }
+
+    public void yieldLong(long value) {
+        this.value = value;
+        yield_();
+    }
+
+    // the next value, NoSuchElementException when the body returned instead
+    public long resumeLong() throws AlreadyFinishedException, NoSuchElementException {
+        resume();
+        if (returned) {
+            throw new NoSuchElementException();
+        }
+        return taken;
+    }
+
+    @Override
+    void handedOver() {
+        taken = value;
+    }
+
+    public PrimitiveIterator.OfLong iterator() {
+        return new Elements();
+    }
+
+    public LongStream stream() {
+        return StreamSupport.longStream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED), false);
+    }
+
+    private final class Elements implements PrimitiveIterator.OfLong {
+        private boolean hasNext;
+        private boolean exhausted;
+
+        @Override
+        public boolean hasNext() {
+            if (!hasNext && !exhausted) {
+                if (isFinished()) {
+                    exhausted = true;
+                } else {
+                    resume();
+                    hasNext = !returned;
+                    exhausted = returned;
+                }
+            }
+            return hasNext;
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            hasNext = false;
+            return taken;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package fi.solita.utils.concurrency;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Generators over memory mapped files, for reading inside coroutines without blocking stream reads.
+// The file is mapped a window at a time, each window starting where the previous one ended up
+// in the middle of a line or record. Yielded values are read-only slices of the mapping, not copies.
+// Note that touching pages not yet in memory still stalls the carrier thread on a page fault.
+public final class MappedFile {
+    public static final int DEFAULT_WINDOW = 64 * 1024 * 1024;
+
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0Al;
+    private static final long LOW_BITS = 0x0101010101010101l;
+    private static final long HIGH_BITS = 0x8080808080808080l;
+
+    private MappedFile() {
+    }
+
+    public static Generator<ByteBuffer> lines(Path file) {
+        return lines(file, DEFAULT_WINDOW);
+    }
+
+    // Lines without their \n or \r\n terminators. A window is grown for lines longer than it.
+    public static Generator<ByteBuffer> lines(Path file, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window: " + window);
+        }
+        return new Generator<>() {
+            @Override
+            public ByteBuffer get() {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    long position = 0;
+                    int windowSize = window;
+                    while (position < size) {
+                        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, size - position));
+                        map.order(ByteOrder.LITTLE_ENDIAN);
+                        int limit = map.limit();
+                        int start = 0;
+                        for (int end = indexOfNewline(map, start, limit); end >= 0; end = indexOfNewline(map, start, limit)) {
+                            yield_(line(map, start, end));
+                            start = end + 1;
+                        }
+                        if (position + limit == size) {
+                            if (start < limit) {
+                                yield_(line(map, start, limit));
+                            }
+                            break;
+                        }
+                        if (start == 0) {
+                            if (windowSize == Integer.MAX_VALUE) {
+                                throw new IllegalStateException("Line at " + position + " does not fit in a single mapping");
+                            }
+                            windowSize = (int) Math.min(Integer.MAX_VALUE, 2l * windowSize);
+                        }
+                        position += start;
+                    }
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    public static Generator<ByteBuffer> records(Path file, int recordSize) {
+        return records(file, recordSize, DEFAULT_WINDOW);
+    }
+
+    // Fixed size records. A trailing partial record is yielded as is.
+    public static Generator<ByteBuffer> records(Path file, int recordSize, int window) {
+        if (recordSize < 1 || window < 1) {
+            throw new IllegalArgumentException("recordSize: " + recordSize + ", window: " + window);
+        }
+        // whole records per window, so that records never straddle two mappings
+        long windowSize = Math.max(1, window / recordSize) * (long) recordSize;
+        if (windowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("recordSize: " + recordSize);
+        }
+        return new Generator<>() {
+            @Override
+            public ByteBuffer get() {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    for (long position = 0; position < size; position += windowSize) {
+                        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, size - position));
+                        int limit = map.limit();
+                        for (int start = 0; start < limit; start += recordSize) {
+                            yield_(map.slice(start, Math.min(recordSize, limit - start)));
+                        }
+                    }
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    private static ByteBuffer line(ByteBuffer map, int start, int end) {
+        if (end > start && map.get(end - 1) == '\r') {
+            --end;
+        }
+        return map.slice(start, end - start);
+    }
+
+    // eight bytes at a time: a byte equal to \n becomes zero after the xor, and the
+    // subtraction sets the high bit of the first such byte (little endian, so lowest address)
+    static int indexOfNewline(ByteBuffer littleEndian, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long x = littleEndian.getLong(i) ^ NEWLINES;
+            long found = (x - LOW_BITS) & ~x & HIGH_BITS;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < to; ++i) {
+            if (littleEndian.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
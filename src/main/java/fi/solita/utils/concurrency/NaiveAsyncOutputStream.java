@@ -1,50 +1,243 @@
 package fi.solita.utils.concurrency;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.math.BigInteger;
-import java.util.Arrays;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedTransferQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Writers copy into a fixed ring buffer and a single drainer thread writes out whatever has accumulated,
+// at most two segments per batch (gathered into one call when the target is a file). A writer finding
+// the ring full is suspended until the drainer has made room, so a burst can't grow the heap.
+// Writers take turns through a CoMutex, so one waiting for room suspends the others too instead of
+// blocking their carriers. Don't put a plain PrintStream in front, see NaiveAsyncPrintStream.
+class NaiveAsyncOutputStream extends OutputStream {
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+    private static final long SHUTDOWN_FLUSH_NANOS = TimeUnit.SECONDS.toNanos(1);
 
-class NaiveAsyncOutputStream extends OutputStream implements Runnable {
     private final OutputStream out;
-    private final BlockingQueue<byte[]> pending = new LinkedTransferQueue<>();
-    
+    private final FileChannel channel;
+    private final byte[] ring;
+    private final int mask;
+    // views over the ring for gathering writes, repositioned for each batch
+    private final ByteBuffer[] segments;
+    private final Thread drainer;
+    private final Thread shutdownHook;
+
+    // serializes the producers, held while waiting for room
+    private final CoMutex writers = new CoMutex();
+
+    // positions grow without wrapping, written by the producers (holding writers) and the drainer respectively
+    private volatile long tail;
+    private volatile long head;
+
+    private volatile boolean drainerSleeping;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    // head position a producer is waiting for, and the hand-off to wake it up. Only one producer
+    // waits at a time since they're serialized by writers. A new hand-off for each wait, so that
+    // a cancelled producer's hand-off can't be mistaken for the next one's.
+    private final AtomicLong waitingFor = new AtomicLong(-1);
+    private volatile HandOff<Void> drained;
+
     public NaiveAsyncOutputStream(OutputStream out) {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    public NaiveAsyncOutputStream(OutputStream out, int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
         this.out = out;
-        Executors.newSingleThreadExecutor().execute(this);
+        this.channel = out instanceof FileOutputStream f ? f.getChannel() : null;
+        this.ring = new byte[capacity];
+        this.mask = capacity - 1;
+        this.segments = new ByteBuffer[] { ByteBuffer.wrap(ring), ByteBuffer.wrap(ring) };
+        this.drainer = new Thread(this::drain, "Thread-NaiveAsyncOutputStream");
+        drainer.setDaemon(true);
+        drainer.start();
+        this.shutdownHook = new Thread(this::flushOnShutdown, "Thread-NaiveAsyncOutputStream-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
-        
+
     @Override
-    public void run() {
-        Thread.currentThread().setName("Thread-NaiveAsyncOutputStream");
-        while (true) {
-            try {
-                byte[] elem = pending.poll(1, TimeUnit.MINUTES);
-                if (elem != null) {
-                    out.write(elem);
-                }
-            } catch (IOException | InterruptedException e) {
-                throw new RuntimeException(e);
+    public void write(int b) throws IOException {
+        writers.lock();
+        try {
+            ensureOpen();
+            long t = tail;
+            while (t - head == ring.length) {
+                awaitHead(t - ring.length + 1);
             }
+            ring[(int) t & mask] = (byte) b;
+            publish(t + 1);
+        } finally {
+            writers.unlock();
         }
     }
-    
+
     @Override
-    public void write(int b) throws IOException {
-        this.write(BigInteger.valueOf(b).toByteArray());
+    public void write(byte[] b, int off, int len) throws IOException {
+        if ((off | len) < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        writers.lock();
+        try {
+            ensureOpen();
+            while (len > 0) {
+                long t = tail;
+                int n = (int) Math.min(len, ring.length - (t - head));
+                if (n == 0) {
+                    // room for the rest (or the whole ring), rather than waking up for every byte freed
+                    awaitHead(t + Math.min(len, ring.length) - ring.length);
+                    continue;
+                }
+                int pos = (int) t & mask;
+                int first = Math.min(n, ring.length - pos);
+                System.arraycopy(b, off, ring, pos, first);
+                System.arraycopy(b, off + first, ring, 0, n - first);
+                publish(t + n);
+                off += n;
+                len -= n;
+            }
+        } finally {
+            writers.unlock();
+        }
     }
-    
+
+    // waits until everything written so far has been handed to the target stream
     @Override
-    public void write(byte[] b) throws IOException {
-        pending.add(b);
+    public void flush() throws IOException {
+        writers.lock();
+        try {
+            flushLocked();
+        } finally {
+            writers.unlock();
+        }
     }
-    
+
     @Override
-    public void write(byte[] b, int off, int len) throws IOException {
-        this.write(Arrays.copyOfRange(b, off, len));
+    public void close() throws IOException {
+        writers.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            try {
+                flushLocked();
+            } finally {
+                closed = true;
+                LockSupport.unpark(drainer);
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // already shutting down
+                }
+                // out belongs to the caller, e.g. System.out, so it's left open
+            }
+        } finally {
+            writers.unlock();
+        }
+    }
+
+    private void flushLocked() throws IOException {
+        ensureOpen();
+        long target = tail;
+        while (head < target) {
+            awaitHead(target);
+        }
+        rethrowFailure();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        rethrowFailure();
+    }
+
+    private void rethrowFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("Writing to the underlying stream failed", e);
+        }
+    }
+
+    private void publish(long newTail) {
+        tail = newTail;
+        if (drainerSleeping) {
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    private void awaitHead(long target) {
+        HandOff<Void> wakeUp = new HandOff<>();
+        drained = wakeUp;
+        waitingFor.set(target);
+        if (head >= target) {
+            // drainer got there before it could see us waiting
+            wakeUp.complete(null);
+        }
+        Coroutine.suspend(wakeUp);
+    }
+
+    private void drain() {
+        while (true) {
+            long h = head;
+            long t = tail;
+            if (h == t) {
+                if (closed) {
+                    return;
+                }
+                drainerSleeping = true;
+                if (tail == h && !closed) {
+                    LockSupport.park(this);
+                }
+                drainerSleeping = false;
+                continue;
+            }
+            try {
+                writeOut(h, t);
+            } catch (IOException e) {
+                // dropped, the failure is reported to the next writer
+                failure = e;
+            }
+            head = t;
+            long w = waitingFor.get();
+            if (w >= 0 && t >= w && waitingFor.compareAndSet(w, -1)) {
+                drained.complete(null);
+            }
+        }
+    }
+
+    private void writeOut(long from, long to) throws IOException {
+        int pos = (int) from & mask;
+        int len = (int) (to - from);
+        int first = Math.min(len, ring.length - pos);
+        if (channel != null) {
+            segments[0].limit(pos + first).position(pos);
+            segments[1].limit(len - first).position(0);
+            while (segments[0].hasRemaining() || segments[1].hasRemaining()) {
+                channel.write(segments);
+            }
+        } else {
+            out.write(ring, pos, first);
+            if (first < len) {
+                out.write(ring, 0, len - first);
+            }
+            out.flush();
+        }
+    }
+
+    private void flushOnShutdown() {
+        long target = tail;
+        long deadline = System.nanoTime() + SHUTDOWN_FLUSH_NANOS;
+        while (head < target && drainer.isAlive() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
     }
-}
\ No newline at end of file
+}
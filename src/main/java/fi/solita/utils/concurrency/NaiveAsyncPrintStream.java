@@ -0,0 +1,173 @@
+package fi.solita.utils.concurrency;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+// A PrintStream in front of a NaiveAsyncOutputStream that holds no monitor while writing. PrintStream
+// itself synchronizes every print on the stream, so a writer suspended waiting for room in the ring would
+// keep everyone else printing blocked on their carriers. Here each call is formatted into bytes first and
+// handed over in a single write, which also keeps the line of a println in one piece.
+class NaiveAsyncPrintStream extends PrintStream {
+    private final NaiveAsyncOutputStream target;
+    private final Charset charset = Charset.defaultCharset();
+
+    NaiveAsyncPrintStream(NaiveAsyncOutputStream target) {
+        super(target);
+        this.target = target;
+    }
+
+    private void emit(String s) {
+        byte[] bytes = s.getBytes(charset);
+        write(bytes, 0, bytes.length);
+    }
+
+    private void emitLine(String s) {
+        emit(s + System.lineSeparator());
+    }
+
+    @Override
+    public void write(int b) {
+        try {
+            target.write(b);
+        } catch (IOException e) {
+            setError();
+        }
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) {
+        try {
+            target.write(buf, off, len);
+        } catch (IOException e) {
+            setError();
+        }
+    }
+
+    @Override
+    public void flush() {
+        try {
+            target.flush();
+        } catch (IOException e) {
+            setError();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            target.close();
+        } catch (IOException e) {
+            setError();
+        }
+    }
+
+    @Override
+    public void print(boolean b) {
+        emit(String.valueOf(b));
+    }
+
+    @Override
+    public void print(char c) {
+        emit(String.valueOf(c));
+    }
+
+    @Override
+    public void print(int i) {
+        emit(String.valueOf(i));
+    }
+
+    @Override
+    public void print(long l) {
+        emit(String.valueOf(l));
+    }
+
+    @Override
+    public void print(float f) {
+        emit(String.valueOf(f));
+    }
+
+    @Override
+    public void print(double d) {
+        emit(String.valueOf(d));
+    }
+
+    @Override
+    public void print(char[] s) {
+        emit(new String(s));
+    }
+
+    @Override
+    public void print(String s) {
+        emit(String.valueOf(s));
+    }
+
+    @Override
+    public void print(Object obj) {
+        emit(String.valueOf(obj));
+    }
+
+    @Override
+    public void println() {
+        emit(System.lineSeparator());
+    }
+
+    @Override
+    public void println(boolean x) {
+        emitLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(char x) {
+        emitLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(int x) {
+        emitLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(long x) {
+        emitLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(float x) {
+        emitLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(double x) {
+        emitLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(char[] x) {
+        emitLine(new String(x));
+    }
+
+    @Override
+    public void println(String x) {
+        emitLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(Object x) {
+        emitLine(String.valueOf(x));
+    }
+
+    // printf and append end up here or in print
+    @Override
+    public PrintStream format(String format, Object... args) {
+        emit(String.format(format, args));
+        return this;
+    }
+
+    @Override
+    public PrintStream format(Locale l, String format, Object... args) {
+        emit(String.format(l, format, args));
+        return this;
+    }
+}
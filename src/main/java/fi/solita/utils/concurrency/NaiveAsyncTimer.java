@@ -1,26 +1,294 @@
 package fi.solita.utils.concurrency;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Hierarchical timing wheel: 6 levels of 64 slots each, the lowest one advancing one slot per tick.
+// Scheduling and cancelling are O(1) queue operations, the single timer thread moves timeouts into
+// (and between) slots and fires everything due in a tick in one go. Sleeping coroutines are suspended
+// directly on a hand-off instead of going through helper coroutines.
+public final class NaiveAsyncTimer {
+    private static final int WHEEL_BITS = 6;
+    private static final int SLOTS = 1 << WHEEL_BITS;
+    private static final int LEVELS = 6;
+    // further than this (2^36 ticks, over two years with 1ms ticks) waits in the top level and gets re-inserted
+    private static final long MAX_DELTA = (1l << (WHEEL_BITS * LEVELS)) - 1;
+    // upper bound for a single park, so that cancelled timeouts get unlinked eventually even when idle
+    private static final long MAX_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public static final class Handle {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private static final VarHandle STATE;
+        static {
+            try {
+                STATE = MethodHandles.lookup().findVarHandle(Handle.class, "state", int.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final NaiveAsyncTimer timer;
+        private final long deadline;
+        private final Runnable action;
+        private volatile int state;
+
+        // owned by the timer thread
+        private Handle prev;
+        private Handle next;
+        private int level = -1;
+        private int slot;
+
+        Handle(NaiveAsyncTimer timer, long deadline, Runnable action) {
+            this.timer = timer;
+            this.deadline = deadline;
+            this.action = action;
+        }
+
+        // false if already fired or cancelled
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        boolean expire() {
+            return STATE.compareAndSet(this, PENDING, EXPIRED);
+        }
+    }
+
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final Queue<Handle> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Handle> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+
+    // owned by the timer thread
+    private final Handle[][] wheel = new Handle[LEVELS][SLOTS];
+    private final long[] occupied = new long[LEVELS];
+    private long currentTick;
+
+    // tick the timer thread is parked until, Long.MIN_VALUE while it's awake
+    private volatile long sleepingUntil = Long.MIN_VALUE;
+
+    public NaiveAsyncTimer() {
+        this(1, TimeUnit.MILLISECONDS);
+    }
+
+    public NaiveAsyncTimer(long tick, TimeUnit unit) {
+        this.tickNanos = unit.toNanos(tick);
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tick: " + tick + " " + unit);
+        }
+        worker = new Thread(this::run, "Thread-NaiveAsyncTimer");
+        worker.setDaemon(true);
+        worker.start();
+    }
 
-class NaiveAsyncTimer {
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-    
     public <T> T block() {
-        sleep(Long.MAX_VALUE, TimeUnit.DAYS);
-        return null;
+        // nothing will ever wake this up
+        return Coroutine.suspend(new HandOff<T>());
     }
-    
+
     public void sleep(long duration, TimeUnit unit) {
-        CoRunnable sleeper = new CoRunnable("Sleeper") {
-            @Override
-            public void run() {
-                yield_();
+        HandOff<Void> wakeUp = new HandOff<>();
+        Handle timeout = schedule(System.nanoTime(), duration, unit, () -> wakeUp.complete(null));
+        try {
+            Coroutine.suspend(wakeUp);
+        } finally {
+            // cancelled before the timeout, don't keep it in the wheel
+            timeout.cancel();
+        }
+    }
+
+    public void sleepUntil(Instant deadline) {
+        Duration remaining = Duration.between(Instant.now(), deadline);
+        if (!remaining.isNegative()) {
+            sleep(saturatedNanos(remaining), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // runs the task as a coroutine in the current dispatcher once the delay has passed
+    public Handle schedule(long delay, TimeUnit unit, Runnable task) {
+        CoroutineDispatcher dispatcher = CoroutineDispatcher.current();
+        return schedule(System.nanoTime(), delay, unit, () -> Coroutine.start(dispatcher, task));
+    }
+
+    // action runs in the timer thread, so it must be short and must not block
+    Handle schedule(long fromNanos, long delay, TimeUnit unit, Runnable action) {
+        long deadline = toTick(fromNanos - startNanos, Math.max(0, unit.toNanos(delay)));
+        Handle handle = new Handle(this, deadline, action);
+        scheduled.add(handle);
+        if (deadline < sleepingUntil) {
+            LockSupport.unpark(worker);
+        }
+        return handle;
+    }
+
+    private static long saturatedNanos(Duration d) {
+        try {
+            return d.toNanos();
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    // first tick at or after the given time, so that nothing fires early
+    private long toTick(long elapsedNanos, long delayNanos) {
+        long sinceStart = delayNanos > Long.MAX_VALUE - elapsedNanos ? Long.MAX_VALUE : elapsedNanos + delayNanos;
+        return sinceStart / tickNanos + (sinceStart % tickNanos == 0 ? 0 : 1);
+    }
+
+    private void run() {
+        while (true) {
+            drain();
+            long now = (System.nanoTime() - startNanos) / tickNanos;
+            long next = nextTick();
+            while (next <= now) {
+                // nothing happens in the ticks in between, so jump straight over them
+                currentTick = next;
+                advance(next);
+                drain();
+                next = nextTick();
+            }
+            currentTick = now;
+
+            long wakeUp = Math.min(next, now + MAX_PARK_NANOS / tickNanos + 1);
+            sleepingUntil = wakeUp;
+            if (scheduled.isEmpty()) {
+                LockSupport.parkNanos(this, startNanos + wakeUp * tickNanos - System.nanoTime());
+            }
+            sleepingUntil = Long.MIN_VALUE;
+        }
+    }
+
+    private void drain() {
+        for (Handle h = scheduled.poll(); h != null; h = scheduled.poll()) {
+            if (h.state == Handle.PENDING) {
+                insert(h);
+            }
+        }
+        for (Handle h = cancelled.poll(); h != null; h = cancelled.poll()) {
+            unlink(h);
+        }
+    }
+
+    private void insert(Handle h) {
+        long delta = h.deadline - currentTick;
+        if (delta <= 0) {
+            fire(h);
+            return;
+        }
+        int level = delta < SLOTS ? 0 : Math.min(LEVELS - 1, (63 - Long.numberOfLeadingZeros(delta)) / WHEEL_BITS);
+        int slot = (int) ((currentTick + Math.min(delta, MAX_DELTA)) >>> (WHEEL_BITS * level)) & (SLOTS - 1);
+        h.level = level;
+        h.slot = slot;
+        h.prev = null;
+        h.next = wheel[level][slot];
+        if (h.next != null) {
+            h.next.prev = h;
+        }
+        wheel[level][slot] = h;
+        occupied[level] |= 1l << slot;
+    }
+
+    private void unlink(Handle h) {
+        if (h.level < 0) {
+            return;
+        }
+        if (h.prev == null) {
+            wheel[h.level][h.slot] = h.next;
+            if (h.next == null) {
+                occupied[h.level] &= ~(1l << h.slot);
+            }
+        } else {
+            h.prev.next = h.next;
+        }
+        if (h.next != null) {
+            h.next.prev = h.prev;
+        }
+        h.prev = null;
+        h.next = null;
+        h.level = -1;
+    }
+
+    // detaches a whole slot, to be fired or moved to lower levels
+    private Handle take(int level, int slot) {
+        Handle head = wheel[level][slot];
+        wheel[level][slot] = null;
+        occupied[level] &= ~(1l << slot);
+        return head;
+    }
+
+    private void advance(long tick) {
+        // higher levels cascade at the start of their slot's span, before the lower levels are processed
+        for (int level = LEVELS - 1; level > 0; --level) {
+            if ((tick & ((1l << (WHEEL_BITS * level)) - 1)) == 0) {
+                Handle h = take(level, (int) (tick >>> (WHEEL_BITS * level)) & (SLOTS - 1));
+                while (h != null) {
+                    Handle next = h.next;
+                    h.level = -1;
+                    if (h.state == Handle.PENDING) {
+                        insert(h);
+                    }
+                    h = next;
+                }
+            }
+        }
+        Handle h = take(0, (int) tick & (SLOTS - 1));
+        while (h != null) {
+            Handle next = h.next;
+            h.prev = null;
+            h.next = null;
+            h.level = -1;
+            fire(h);
+            h = next;
+        }
+    }
+
+    private void fire(Handle h) {
+        if (h.expire()) {
+            try {
+                h.action.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // earliest tick at which some slot fires or cascades
+    private long nextTick() {
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; ++level) {
+            if (occupied[level] == 0) {
+                continue;
             }
-        };
-        sleeper.start();
-        scheduler.schedule(() -> Coroutine.start(() -> sleeper.resume()), duration, unit);
-        sleeper.join();
+            int shift = WHEEL_BITS * level;
+            long block = currentTick >>> shift;
+            int current = (int) block & (SLOTS - 1);
+            // slots after the current one come first, the current one itself only after a full round
+            long rotated = Long.rotateRight(occupied[level], current + 1);
+            long distance = Long.numberOfTrailingZeros(rotated) + 1;
+            next = Math.min(next, (block + distance) << shift);
+        }
+        return next;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,242 @@
+package fi.solita.utils.concurrency;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+// Bridges to Project Reactor. Kept apart from Coroutine so that reactor-core stays an optional dependency.
+public final class Reactive {
+    private Reactive() {
+    }
+
+    // Suspends the calling coroutine until the Mono completes, failing like Mono.block. null when empty.
+    // Cancelling the coroutine cancels the subscription.
+    public static <T> T await(Mono<T> mono) throws CancelledException {
+        CompletableFuture<T> future = mono.toFuture();
+        try {
+            return Coroutine.await(future);
+        } catch (CompletionException e) {
+            throw Exceptions.propagate(e.getCause());
+        } catch (CancelledException e) {
+            future.cancel(false);
+            throw e;
+        }
+    }
+
+    // The elements of the generator. Every element demanded with request(n) resumes the generator once,
+    // in the requesting thread, and the end is noticed by the resume after the last element. Cancelling
+    // the subscription cancels the generator. Subscribers share the generator, so subscribe only once.
+    public static <T> Flux<T> toFlux(Generator<T> generator) {
+        return Flux.from(subscriber -> subscriber.onSubscribe(new GeneratorSubscription<>(generator, subscriber)));
+    }
+
+    // Subscribes to the Flux, letting it run ahead by up to prefetch elements. hasNext suspends the
+    // calling coroutine until the next element or the end has arrived. Single consumer.
+    public static <T> Source<T> toSource(Flux<? extends T> flux, int prefetch) {
+        if (prefetch < 1) {
+            throw new IllegalArgumentException("prefetch: " + prefetch);
+        }
+        Source<T> source = new Source<>(prefetch);
+        flux.subscribe(source.new Receiver());
+        return source;
+    }
+
+    private static long addCap(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    private static final class GeneratorSubscription<T> implements Subscription {
+        private final Generator<T> generator;
+        private final Iterator<T> elements;
+        private final Subscriber<? super T> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        // serializes the resumes, also against reentrant requests from onNext
+        private final AtomicInteger draining = new AtomicInteger();
+        private volatile boolean cancelled;
+
+        GeneratorSubscription(Generator<T> generator, Subscriber<? super T> subscriber) {
+            this.generator = generator;
+            this.elements = generator.iterator();
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Reactive Streams rule 3.9 violated: positive request amount required but it was " + n));
+                return;
+            }
+            requested.getAndAccumulate(n, Reactive::addCap);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            generator.cancel();
+        }
+
+        private void drain() {
+            if (draining.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                long demand = requested.get();
+                long emitted = 0;
+                while (emitted != demand) {
+                    if (cancelled) {
+                        return;
+                    }
+                    T next;
+                    try {
+                        if (!elements.hasNext()) {
+                            cancelled = true;
+                            if (generator.isStarted()) {
+                                // rethrows a failure of the body
+                                generator.join();
+                            }
+                            subscriber.onComplete();
+                            return;
+                        }
+                        next = elements.next();
+                        if (next == null) {
+                            throw new NullPointerException("Generator yielded null");
+                        }
+                    } catch (RuntimeException | Error e) {
+                        cancel();
+                        subscriber.onError(e);
+                        return;
+                    }
+                    subscriber.onNext(next);
+                    emitted++;
+                }
+                if (demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                missed = draining.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+    public static final class Source<T> implements Iterator<T>, AutoCloseable {
+        private final int prefetch;
+        // consumed elements after which to request more, like Flux.limitRate
+        private final int replenish;
+        private final Queue<T> elements = new ConcurrentLinkedQueue<>();
+        private volatile Subscription subscription;
+        private volatile boolean closed;
+        private volatile boolean done;
+        private volatile Throwable failure;
+        // the consumer waiting for the next signal, a new hand-off for each wait
+        private volatile HandOff<Void> waiting;
+        private int consumed;
+
+        Source(int prefetch) {
+            this.prefetch = prefetch;
+            this.replenish = prefetch - (prefetch >> 2);
+        }
+
+        @Override
+        public boolean hasNext() throws CancelledException {
+            while (elements.isEmpty()) {
+                if (done) {
+                    // elements are queued before done is set
+                    if (!elements.isEmpty()) {
+                        break;
+                    }
+                    Throwable f = failure;
+                    if (f != null) {
+                        throw Exceptions.propagate(f);
+                    }
+                    return false;
+                }
+                HandOff<Void> wakeUp = new HandOff<>();
+                waiting = wakeUp;
+                try {
+                    if (elements.isEmpty() && !done) {
+                        Coroutine.suspend(wakeUp);
+                    }
+                } finally {
+                    waiting = null;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public T next() throws CancelledException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T next = elements.poll();
+            if (++consumed == replenish) {
+                consumed = 0;
+                subscription.request(replenish);
+            }
+            return next;
+        }
+
+        // Cancels the subscription. Elements already received can still be consumed.
+        @Override
+        public void close() {
+            closed = true;
+            Subscription s = subscription;
+            if (s != null) {
+                s.cancel();
+            }
+        }
+
+        private void wakeUp() {
+            HandOff<Void> w = waiting;
+            if (w != null) {
+                w.complete(null);
+            }
+        }
+
+        final class Receiver implements Subscriber<T> {
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription = s;
+                if (closed) {
+                    s.cancel();
+                } else {
+                    s.request(prefetch);
+                }
+            }
+
+            @Override
+            public void onNext(T t) {
+                elements.offer(t);
+                wakeUp();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                failure = t;
+                done = true;
+                wakeUp();
+            }
+
+            @Override
+            public void onComplete() {
+                done = true;
+                wakeUp();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package fi.solita.utils.concurrency;
+
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Coroutines of a carrier waiting to be started. The highest priority band goes first, and within a band
+// the earliest deadline, then the ones without a deadline in arrival order. A coroutine at the head of
+// its queue which has waited longer than the maximum wait goes before all of them, so that a steady
+// stream of urgent work can't starve the rest.
+//
+// Coroutines without a deadline, the common case, go through lock-free queues. Deadlines are kept
+// ordered under a lock.
+final class ReadyQueue {
+    static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong(Coroutine.MAX_QUEUE_WAIT_PROPERTY, 100));
+
+    private final Band[] bands = new Band[Coroutine.Priority.values().length];
+    private final AtomicInteger size = new AtomicInteger();
+
+    ReadyQueue() {
+        for (int i = 0; i < bands.length; ++i) {
+            bands[i] = new Band();
+        }
+    }
+
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    // number of coroutines waiting after this one was added
+    int add(Coroutine<?,?> c) {
+        c.enqueuedAt = System.nanoTime();
+        bands[c.priority().ordinal()].add(c);
+        return size.incrementAndGet();
+    }
+
+    Coroutine<?,?> poll() {
+        if (size.get() == 0) {
+            return null;
+        }
+        Coroutine<?,?> c = pollStarved(System.nanoTime() - MAX_WAIT_NANOS);
+        for (int i = bands.length - 1; c == null && i >= 0; --i) {
+            c = bands[i].poll();
+        }
+        if (c != null) {
+            size.decrementAndGet();
+        }
+        return c;
+    }
+
+    // the longest waiting head enqueued before the limit, if any
+    private Coroutine<?,?> pollStarved(long limit) {
+        Band oldestBand = null;
+        Coroutine<?,?> oldest = null;
+        for (Band b : bands) {
+            Coroutine<?,?> c = b.oldestHead();
+            if (c != null && c.enqueuedAt - limit < 0 && (oldest == null || c.enqueuedAt - oldest.enqueuedAt < 0)) {
+                oldest = c;
+                oldestBand = b;
+            }
+        }
+        // someone else may have taken it meanwhile
+        return oldest != null && oldestBand.remove(oldest) ? oldest : null;
+    }
+
+    private static final class Band {
+        private final Queue<Coroutine<?,?>> arrived = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Coroutine<?,?>> byDeadline = new PriorityQueue<>((a, b) -> Long.compare(a.deadline() - b.deadline(), 0));
+        // size of byDeadline, to skip the lock when there are none
+        private volatile int deadlines;
+
+        void add(Coroutine<?,?> c) {
+            if (!c.hasDeadline()) {
+                arrived.add(c);
+                return;
+            }
+            synchronized (byDeadline) {
+                byDeadline.add(c);
+                deadlines = byDeadline.size();
+            }
+        }
+
+        Coroutine<?,?> poll() {
+            if (deadlines > 0) {
+                synchronized (byDeadline) {
+                    Coroutine<?,?> c = byDeadline.poll();
+                    deadlines = byDeadline.size();
+                    if (c != null) {
+                        return c;
+                    }
+                }
+            }
+            return arrived.poll();
+        }
+
+        // the heads of both queues are candidates, an approximation for the one with a deadline
+        Coroutine<?,?> oldestHead() {
+            Coroutine<?,?> a = arrived.peek();
+            if (deadlines > 0) {
+                synchronized (byDeadline) {
+                    Coroutine<?,?> d = byDeadline.peek();
+                    if (d != null && (a == null || d.enqueuedAt - a.enqueuedAt < 0)) {
+                        return d;
+                    }
+                }
+            }
+            return a;
+        }
+
+        boolean remove(Coroutine<?,?> c) {
+            if (!c.hasDeadline()) {
+                return arrived.remove(c);
+            }
+            synchronized (byDeadline) {
+                boolean removed = byDeadline.remove(c);
+                deadlines = byDeadline.size();
+                return removed;
+            }
+        }
+    }
+}
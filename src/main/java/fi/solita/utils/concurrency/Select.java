@@ -0,0 +1,288 @@
+package fi.solita.utils.concurrency;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Waits for whichever of several sources is ready first: a coroutine finishing, a generator yielding
+// its next value, a value from a channel or a timeout. select() suspends the calling coroutine (outside
+// coroutines: blocks the thread) and returns what the first ready arm makes of it. When several are
+// ready, the one added first wins. Only the winner is consumed, e.g. the other generators are not
+// resumed and the other channels keep their values.
+//
+// Every arm completes the same hand-off, so there are no helper coroutines. Arms that turn out not to be
+// ready after all, e.g. a coroutine which only yielded, are simply registered again. A select can be
+// reused, a timeout counting from the start of each select(). Generators which have ended and channels
+// which are closed and empty drop out, and once all arms have, select() fails with NoSuchElementException.
+public final class Select<R> {
+    // not ready yet
+    private static final Object NONE = new Object();
+    // never will be
+    private static final Object ENDED = new Object();
+
+    private final List<Arm<?,R>> arms = new ArrayList<>();
+
+    public <T> Select<R> onJoin(Coroutine<?,T> coroutine, Function<? super T, ? extends R> f) {
+        arms.add(new Join<>(coroutine, f));
+        return this;
+    }
+
+    // Starts the generator if necessary, so that it can run up to its first yield
+    public <T> Select<R> onNext(Generator<T> generator, Function<? super T, ? extends R> f) {
+        arms.add(new Next<>(generator, f));
+        return this;
+    }
+
+    public <T> Select<R> onReceive(Channel<T> channel, Function<? super T, ? extends R> f) {
+        arms.add(new Receive<>(channel, f));
+        return this;
+    }
+
+    public Select<R> onTimeout(long delay, TimeUnit unit, Supplier<? extends R> f) {
+        arms.add(new Timeout<>(unit.toNanos(delay), f));
+        return this;
+    }
+
+    public R select() throws CancelledException, NoSuchElementException {
+        if (arms.isEmpty()) {
+            throw new IllegalStateException("Nothing to select from");
+        }
+        long start = System.nanoTime();
+        while (true) {
+            boolean live = false;
+            for (Arm<?,R> a : arms) {
+                Object v = a.poll(start);
+                a.ended = v == ENDED;
+                if (v != NONE && v != ENDED) {
+                    return a.result(v);
+                }
+                live |= !a.ended;
+            }
+            if (!live) {
+                throw new NoSuchElementException("All sources have ended");
+            }
+            HandOff<Object> ready = new HandOff<>();
+            Object fired;
+            int registered = 0;
+            try {
+                for (Arm<?,R> a : arms) {
+                    if (!a.ended) {
+                        a.register(ready, start);
+                    }
+                    registered++;
+                }
+                fired = Coroutine.suspend(ready);
+            } finally {
+                for (int i = 0; i < registered; ++i) {
+                    Arm<?,R> a = arms.get(i);
+                    if (!a.ended) {
+                        a.unregister();
+                    }
+                }
+            }
+            @SuppressWarnings("unchecked")
+            Arm<?,R> a = (Arm<?,R>) fired;
+            Object v = a.fired(start);
+            if (v != NONE && v != ENDED) {
+                return a.result(v);
+            }
+        }
+    }
+
+    // Completes a select's hand-off with an arm, see Coroutine.watch
+    static final class Watcher {
+        private final HandOff<Object> ready;
+        private final Object arm;
+        Watcher next;
+
+        Watcher(HandOff<Object> ready, Object arm) {
+            this.ready = ready;
+            this.arm = arm;
+        }
+
+        boolean isDone() {
+            return ready.isDone();
+        }
+
+        void fire() {
+            ready.complete(this.arm);
+        }
+    }
+
+    private abstract static class Arm<T,R> {
+        private final Function<? super T, ? extends R> f;
+        // as of the latest poll
+        boolean ended;
+
+        Arm(Function<? super T, ? extends R> f) {
+            this.f = f;
+        }
+
+        // the value if ready, otherwise NONE or ENDED
+        abstract Object poll(long start);
+
+        // completes ready with this arm once it may be ready, or right away if it may already be
+        abstract void register(HandOff<Object> ready, long start);
+
+        void unregister() {
+        }
+
+        // after completing ready
+        Object fired(long start) {
+            return poll(start);
+        }
+
+        @SuppressWarnings("unchecked")
+        final R result(Object value) {
+            return f.apply((T) value);
+        }
+    }
+
+    private static final class Join<T,R> extends Arm<T,R> {
+        private final Coroutine<?,T> coroutine;
+
+        Join(Coroutine<?,T> coroutine, Function<? super T, ? extends R> f) {
+            super(f);
+            this.coroutine = coroutine;
+        }
+
+        @Override
+        Object poll(long start) {
+            if (!coroutine.isStarted()) {
+                throw new NotStartedException();
+            }
+            return coroutine.isFinished() ? coroutine.doJoin() : NONE;
+        }
+
+        @Override
+        void register(HandOff<Object> ready, long start) {
+            coroutine.watch(new Watcher(ready, this));
+            if (coroutine.isFinished()) {
+                ready.complete(this);
+            }
+        }
+    }
+
+    private static final class Next<T,R> extends Arm<T,R> {
+        private final Generator<T> generator;
+
+        Next(Generator<T> generator, Function<? super T, ? extends R> f) {
+            super(f);
+            this.generator = generator;
+        }
+
+        @Override
+        Object poll(long start) {
+            Generator<T> g = generator;
+            if (g.runsStackless()) {
+                if (g.isFinished()) {
+                    return ENDED;
+                }
+                T v = g.resume();
+                return g.returned ? ENDED : v;
+            }
+            if (!g.isStarted()) {
+                g.start();
+            }
+            if (g.isFinished()) {
+                return ENDED;
+            }
+            if (!g.resumeLock.isDone()) {
+                return NONE;
+            }
+            T v;
+            try {
+                // takes the value already yielded
+                v = g.resume();
+            } catch (AlreadyFinishedException e) {
+                return ENDED;
+            }
+            return g.returned ? ENDED : v;
+        }
+
+        @Override
+        void register(HandOff<Object> ready, long start) {
+            generator.watch(new Watcher(ready, this));
+            if (generator.resumeLock.isDone() || generator.isFinished()) {
+                ready.complete(this);
+            }
+        }
+    }
+
+    private static final class Receive<T,R> extends Arm<T,R> {
+        private final Channel<T> channel;
+        private Channel.Waiter waiter;
+
+        Receive(Channel<T> channel, Function<? super T, ? extends R> f) {
+            super(f);
+            this.channel = channel;
+        }
+
+        @Override
+        Object poll(long start) {
+            T v;
+            try {
+                v = channel.tryReceive();
+            } catch (ChannelClosedException e) {
+                return ENDED;
+            }
+            return v == null ? NONE : v;
+        }
+
+        @Override
+        void register(HandOff<Object> ready, long start) {
+            waiter = channel.receiveFor(ready, this);
+        }
+
+        // one claimed by a sender after another arm won is left for the sender to skip
+        @Override
+        void unregister() {
+            waiter.cancel();
+        }
+
+        @Override
+        Object fired(long start) {
+            T v;
+            try {
+                v = channel.received(waiter);
+            } catch (ChannelClosedException e) {
+                return ENDED;
+            }
+            return v == null ? NONE : v;
+        }
+    }
+
+    private static final class Timeout<R> extends Arm<Void,R> {
+        private final long delayNanos;
+        private NaiveAsyncTimer.Handle timer;
+
+        Timeout(long delayNanos, Supplier<? extends R> f) {
+            super(ignored -> f.get());
+            this.delayNanos = delayNanos;
+        }
+
+        @Override
+        Object poll(long start) {
+            return System.nanoTime() - start >= delayNanos ? null : NONE;
+        }
+
+        @Override
+        void register(HandOff<Object> ready, long start) {
+            timer = Coroutine.scheduler.schedule(start, delayNanos, TimeUnit.NANOSECONDS, () -> ready.complete(this));
+        }
+
+        @Override
+        void unregister() {
+            timer.cancel();
+        }
+
+        // the timer may round the delay to its ticks
+        @Override
+        Object fired(long start) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package fi.solita.utils.concurrency;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Socket operations which suspend the calling coroutine instead of blocking its carrier.
+// Each operation is first tried directly on the (non-blocking) channel, and only if it would
+// block is the interest handed to the selector thread, which wakes the coroutine once the
+// channel is ready. Interests are one-shot, i.e. dropped again once they have fired.
+// At most one operation of each kind may be pending per channel at a time. Closing the channel
+// fails its pending operations with ClosedChannelException.
+public final class SelectorLoop implements AutoCloseable {
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Interest> requests = new ConcurrentLinkedQueue<>();
+    // to do at most one Selector.wakeup per round however many coroutines start waiting
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private volatile boolean open = true;
+    // keys registered by the selector thread. Closing a channel cancels its key, which then never
+    // shows up as selected, so the waiters of invalid keys are woken from here. The close doesn't
+    // wake the selector either, so while anyone is waiting the keys are rechecked every so often.
+    private final Set<SelectionKey> registered = new HashSet<>();
+    private static final long CLOSED_CHECK_MILLIS = 100;
+
+    private static final class Interest {
+        final SelectableChannel channel;
+        final int op;
+        final HandOff<Void> ready = new HandOff<>();
+
+        Interest(SelectableChannel channel, int op) {
+            this.channel = channel;
+            this.op = op;
+        }
+    }
+
+    // waiters of a registered channel, owned by the selector thread
+    private static final class Waiters {
+        HandOff<Void> accept;
+        HandOff<Void> connect;
+        HandOff<Void> read;
+        HandOff<Void> write;
+
+        void set(int op, HandOff<Void> ready) {
+            switch (op) {
+                case SelectionKey.OP_ACCEPT: accept = ready; break;
+                case SelectionKey.OP_CONNECT: connect = ready; break;
+                case SelectionKey.OP_READ: read = ready; break;
+                case SelectionKey.OP_WRITE: write = ready; break;
+                default: throw new IllegalArgumentException("op: " + op);
+            }
+        }
+
+        boolean any() {
+            return accept != null || connect != null || read != null || write != null;
+        }
+
+        void wake(int ops) {
+            if ((ops & SelectionKey.OP_ACCEPT) != 0) {
+                accept = wake(accept);
+            }
+            if ((ops & SelectionKey.OP_CONNECT) != 0) {
+                connect = wake(connect);
+            }
+            if ((ops & SelectionKey.OP_READ) != 0) {
+                read = wake(read);
+            }
+            if ((ops & SelectionKey.OP_WRITE) != 0) {
+                write = wake(write);
+            }
+        }
+
+        private static HandOff<Void> wake(HandOff<Void> waiter) {
+            if (waiter != null) {
+                waiter.complete(null);
+            }
+            return null;
+        }
+    }
+
+    public SelectorLoop() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, "Thread-SelectorLoop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public SocketChannel accept(ServerSocketChannel server) throws IOException {
+        nonBlocking(server);
+        while (true) {
+            SocketChannel accepted = server.accept();
+            if (accepted != null) {
+                accepted.configureBlocking(false);
+                return accepted;
+            }
+            await(server, SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    public void connect(SocketChannel channel, SocketAddress remote) throws IOException {
+        nonBlocking(channel);
+        if (channel.connect(remote)) {
+            return;
+        }
+        while (!channel.finishConnect()) {
+            await(channel, SelectionKey.OP_CONNECT);
+        }
+    }
+
+    // at least one byte, or -1 at end of stream
+    public int read(SocketChannel channel, ByteBuffer dst) throws IOException {
+        nonBlocking(channel);
+        while (true) {
+            int n = channel.read(dst);
+            if (n != 0 || !dst.hasRemaining()) {
+                return n;
+            }
+            await(channel, SelectionKey.OP_READ);
+        }
+    }
+
+    // everything remaining in src
+    public int write(SocketChannel channel, ByteBuffer src) throws IOException {
+        nonBlocking(channel);
+        int total = 0;
+        while (true) {
+            total += channel.write(src);
+            if (!src.hasRemaining()) {
+                return total;
+            }
+            await(channel, SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Suspended operations fail with ClosedSelectorException. The channels are left open.
+    @Override
+    public void close() {
+        open = false;
+        selector.wakeup();
+    }
+
+    private static void nonBlocking(SelectableChannel channel) throws IOException {
+        if (channel.isBlocking()) {
+            channel.configureBlocking(false);
+        }
+    }
+
+    private void await(SelectableChannel channel, int op) {
+        if (!open) {
+            throw new ClosedSelectorException();
+        }
+        Interest interest = new Interest(channel, op);
+        requests.add(interest);
+        if (!open) {
+            // the selector thread may have quit before seeing this one
+            interest.ready.complete(null);
+        }
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        Coroutine.suspend(interest.ready);
+        if (!open) {
+            throw new ClosedSelectorException();
+        }
+    }
+
+    private void run() {
+        try {
+            while (open) {
+                wakeupPending.set(false);
+                for (Interest i = requests.poll(); i != null; i = requests.poll()) {
+                    register(i);
+                }
+                selector.select(wakeClosed() ? CLOSED_CHECK_MILLIS : 0);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Waiters waiters = (Waiters) key.attachment();
+                    try {
+                        int ready = key.readyOps();
+                        key.interestOps(key.interestOps() & ~ready);
+                        waiters.wake(ready);
+                    } catch (CancelledKeyException e) {
+                        // channel closed, let the operations fail on their own
+                        waiters.wake(-1);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            open = false;
+            for (SelectionKey key : selector.keys()) {
+                ((Waiters) key.attachment()).wake(-1);
+            }
+            for (Interest i = requests.poll(); i != null; i = requests.poll()) {
+                i.ready.complete(null);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // whether any waiters remain
+    private boolean wakeClosed() {
+        boolean waiting = false;
+        for (Iterator<SelectionKey> it = registered.iterator(); it.hasNext();) {
+            SelectionKey key = it.next();
+            Waiters waiters = (Waiters) key.attachment();
+            if (!key.isValid()) {
+                it.remove();
+                // retrying the operations reports the closed channel
+                waiters.wake(-1);
+            } else {
+                waiting |= waiters.any();
+            }
+        }
+        return waiting;
+    }
+
+    private void register(Interest i) {
+        try {
+            SelectionKey key = i.channel.keyFor(selector);
+            if (key == null) {
+                key = i.channel.register(selector, i.op, new Waiters());
+                registered.add(key);
+            } else {
+                key.interestOps(key.interestOps() | i.op);
+            }
+            ((Waiters) key.attachment()).set(i.op, i.ready);
+        } catch (ClosedChannelException | CancelledKeyException e) {
+            // retrying the operation reports the closed channel
+            i.ready.complete(null);
+        }
+    }
+}
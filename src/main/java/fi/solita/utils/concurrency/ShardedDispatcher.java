@@ -0,0 +1,65 @@
+package fi.solita.utils.concurrency;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ShardedDispatcher extends CoroutineDispatcher {
+    private final Carrier[] carriers;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    
+    public ShardedDispatcher() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    public ShardedDispatcher(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards: " + shards);
+        }
+        carriers = new Carrier[shards];
+        for (int i = 0; i < shards; ++i) {
+            carriers[i] = new Carrier(this);
+        }
+    }
+    
+    public int shards() {
+        return carriers.length;
+    }
+    
+    @Override
+    Carrier carrierFor() {
+        Carrier current = Carrier.current();
+        if (current != null && current.dispatcher == this) {
+            // keep children on the parent's shard
+            return current;
+        }
+        return carriers[Math.floorMod(nextShard.getAndIncrement(), carriers.length)];
+    }
+    
+    @Override
+    List<Carrier> carriers() {
+        return List.of(carriers);
+    }
+    
+    @Override
+    Carrier pumpFor(Carrier target) {
+        if (target.running.get() == null) {
+            return target;
+        }
+        for (Carrier c : carriers) {
+            if (c.isIdle()) {
+                return c;
+            }
+        }
+        return target;
+    }
+    
+    @Override
+    Coroutine<?,?> next(Carrier carrier) {
+        Coroutine<?,?> c = carrier.poll();
+        for (int i = 0; c == null && i < carriers.length; ++i) {
+            // steal unstarted work from a busy shard
+            c = carriers[i].poll();
+        }
+        return c;
+    }
+}
@@ -0,0 +1,17 @@
+package fi.solita.utils.concurrency;
+
+import java.util.List;
+
+public class SingleCarrierDispatcher extends CoroutineDispatcher {
+    private final Carrier carrier = new Carrier(this);
+    
+    @Override
+    Carrier carrierFor() {
+        return carrier;
+    }
+    
+    @Override
+    List<Carrier> carriers() {
+        return List.of(carrier);
+    }
+}
@@ -0,0 +1,18 @@
+package fi.solita.utils.concurrency;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Marks a Generator whose get() body StacklessProcessor compiles into a state machine, generated as
+// a subclass named <Outer>_<Name>Stackless. Iterating or resuming an unstarted instance of the
+// generated class runs the body as plain method calls instead of in a coroutine.
+//
+// Supported in the body: local variables with explicit types, blocks, if, while, do, for, for-each,
+// labeled break and continue, return, and yield_ as a statement. Other statements may be used as long
+// as they don't yield or return. Lambdas and inner classes must not capture local variables.
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface Stackless {
+}
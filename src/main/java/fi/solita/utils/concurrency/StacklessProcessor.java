@@ -0,0 +1,756 @@
+package fi.solita.utils.concurrency;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+
+import com.sun.source.tree.BlockTree;
+import com.sun.source.tree.BreakTree;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.ContinueTree;
+import com.sun.source.tree.DoWhileLoopTree;
+import com.sun.source.tree.EnhancedForLoopTree;
+import com.sun.source.tree.ExpressionStatementTree;
+import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.ForLoopTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.IfTree;
+import com.sun.source.tree.ImportTree;
+import com.sun.source.tree.LabeledStatementTree;
+import com.sun.source.tree.LambdaExpressionTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.NewArrayTree;
+import com.sun.source.tree.ReturnTree;
+import com.sun.source.tree.StatementTree;
+import com.sun.source.tree.SwitchTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.tree.WhileLoopTree;
+import com.sun.source.util.TreeScanner;
+import com.sun.source.util.Trees;
+
+// Compiles the get() of @Stackless generators into a state machine, see Stackless. Local variables are
+// hoisted into fields and the control flow is flattened into a switch over numbered states, with a new
+// state after every yield_. Expressions are copied over as they are, which is why the generated class
+// extends the generator: fields and methods used by the body resolve just like in the original.
+@SupportedAnnotationTypes("fi.solita.utils.concurrency.Stackless")
+public final class StacklessProcessor extends AbstractProcessor {
+    private static final String GENERATOR = Generator.class.getName();
+    private static final String SUFFIX = "Stackless";
+    private static final String INDENT = "                ";
+
+    private Trees trees;
+
+    private static final class UnsupportedException extends RuntimeException {
+        final Tree tree;
+
+        UnsupportedException(Tree tree, String message) {
+            super(message);
+            this.tree = tree;
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public synchronized void init(ProcessingEnvironment env) {
+        super.init(env);
+        trees = Trees.instance(env);
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element e : roundEnv.getElementsAnnotatedWith(Stackless.class)) {
+            CompilationUnitTree cu = trees.getPath(e).getCompilationUnit();
+            try {
+                generate((TypeElement) e, cu);
+            } catch (UnsupportedException ex) {
+                trees.printMessage(Diagnostic.Kind.ERROR, "@Stackless: " + ex.getMessage(), ex.tree, cu);
+            } catch (IOException ex) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "@Stackless: " + ex, e);
+            }
+        }
+        return true;
+    }
+
+    private void generate(TypeElement type, CompilationUnitTree cu) throws IOException {
+        Tree classTree = trees.getTree(type);
+        if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.FINAL)) {
+            throw new UnsupportedException(classTree, "must be a non-final class");
+        }
+        if (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC)) {
+            throw new UnsupportedException(classTree, "a nested class must be static");
+        }
+        TypeMirror out = elementType(type.asType());
+        if (out == null) {
+            throw new UnsupportedException(classTree, "must extend " + GENERATOR);
+        }
+        ExecutableElement get = null;
+        for (ExecutableElement m : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if (m.getSimpleName().contentEquals("get") && m.getParameters().isEmpty()) {
+                get = m;
+            }
+        }
+        if (get == null) {
+            throw new UnsupportedException(classTree, "must declare get()");
+        }
+        BlockTree body = trees.getTree(get).getBody();
+
+        Translator translator = new Translator();
+        translator.body(body);
+        checkLocals(type, body, translator.fields.keySet());
+
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String name = generatedName(type);
+        try (Writer w = processingEnv.getFiler().createSourceFile(packageName.isEmpty() ? name : packageName + "." + name, type).openWriter()) {
+            w.write(source(type, cu, packageName, name, out, translator, usedNames(body)));
+        }
+    }
+
+    // OUT of Generator<OUT> as seen from the given type
+    private TypeMirror elementType(TypeMirror t) {
+        for (TypeMirror s : processingEnv.getTypeUtils().directSupertypes(t)) {
+            if (s.getKind() != TypeKind.DECLARED) {
+                continue;
+            }
+            DeclaredType d = (DeclaredType) s;
+            if (((TypeElement) d.asElement()).getQualifiedName().contentEquals(GENERATOR)) {
+                return d.getTypeArguments().isEmpty() ? processingEnv.getElementUtils().getTypeElement("java.lang.Object").asType() : d.getTypeArguments().get(0);
+            }
+            TypeMirror found = elementType(s);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    // Outer_InnerStackless
+    private static String generatedName(TypeElement type) {
+        String name = type.getSimpleName().toString();
+        for (Element e = type.getEnclosingElement(); e instanceof TypeElement; e = e.getEnclosingElement()) {
+            name = e.getSimpleName() + "_" + name;
+        }
+        return name + SUFFIX;
+    }
+
+    // Hoisted locals must not hide the generator's own fields, nor be captured: a lambda would
+    // see the field's later values instead of the value at the time it was created.
+    private void checkLocals(TypeElement type, BlockTree body, Set<String> locals) {
+        for (VariableElement f : ElementFilter.fieldsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (locals.contains(f.getSimpleName().toString())) {
+                throw new UnsupportedException(body, "local variable " + f.getSimpleName() + " hides a field");
+            }
+        }
+        new TreeScanner<Void,Boolean>() {
+            @Override
+            public Void visitLambdaExpression(LambdaExpressionTree node, Boolean captured) {
+                return super.visitLambdaExpression(node, true);
+            }
+            @Override
+            public Void visitClass(ClassTree node, Boolean captured) {
+                return super.visitClass(node, true);
+            }
+            @Override
+            public Void visitIdentifier(IdentifierTree node, Boolean captured) {
+                if (captured && locals.contains(node.getName().toString())) {
+                    throw new UnsupportedException(node, "local variable " + node.getName() + " is captured");
+                }
+                return null;
+            }
+        }.scan(body, false);
+    }
+
+    // Simple names the body refers to. The rest of the generated source only uses qualified names.
+    private static Set<String> usedNames(BlockTree body) {
+        Set<String> names = new HashSet<>();
+        new TreeScanner<Void,Void>() {
+            @Override
+            public Void visitIdentifier(IdentifierTree node, Void p) {
+                names.add(node.getName().toString());
+                return null;
+            }
+        }.scan(body, null);
+        return names;
+    }
+
+    private boolean needed(ImportTree i, Set<String> names) {
+        MemberSelectTree imported = (MemberSelectTree) i.getQualifiedIdentifier();
+        String member = imported.getIdentifier().toString();
+        if (!member.equals("*")) {
+            return names.contains(member);
+        }
+        return importsAny(imported.getExpression().toString(), i.isStatic(), names);
+    }
+
+    // whether an on-demand import of the types or static members of the qualifier brings in any of the names
+    private boolean importsAny(String qualifier, boolean statics, Set<String> names) {
+        Elements elements = processingEnv.getElementUtils();
+        if (!statics) {
+            for (String n : names) {
+                if (elements.getTypeElement(qualifier + "." + n) != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        TypeElement t = elements.getTypeElement(qualifier);
+        if (t == null) {
+            // can't tell, so keep it
+            return true;
+        }
+        for (Element m : elements.getAllMembers(t)) {
+            if (m.getModifiers().contains(Modifier.STATIC) && names.contains(m.getSimpleName().toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String source(TypeElement type, CompilationUnitTree cu, String packageName, String name, TypeMirror out, Translator translator, Set<String> names) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Generated by ").append(StacklessProcessor.class.getSimpleName()).append(" from ").append(type.getQualifiedName()).append(", do not edit\n");
+        if (!packageName.isEmpty()) {
+            sb.append("package ").append(packageName).append(";\n");
+        }
+        List<String> imports = new ArrayList<>();
+        for (ImportTree i : cu.getImports()) {
+            if (needed(i, names)) {
+                imports.add(i.toString().trim());
+            }
+        }
+        for (Element e = type.getEnclosingElement(); e instanceof TypeElement t; e = e.getEnclosingElement()) {
+            // members of the enclosing classes were in scope in the original body
+            if (importsAny(t.getQualifiedName().toString(), false, names)) {
+                imports.add("import " + t.getQualifiedName() + ".*;");
+            }
+            if (importsAny(t.getQualifiedName().toString(), true, names)) {
+                imports.add("import static " + t.getQualifiedName() + ".*;");
+            }
+        }
+        if (!imports.isEmpty()) {
+            sb.append('\n');
+            for (String i : imports) {
+                sb.append(i).append('\n');
+            }
+        }
+
+        List<String> typeParams = new ArrayList<>();
+        List<String> typeArgs = new ArrayList<>();
+        for (TypeParameterElement p : type.getTypeParameters()) {
+            StringBuilder param = new StringBuilder(p.getSimpleName());
+            String sep = " extends ";
+            for (TypeMirror bound : p.getBounds()) {
+                if (!bound.toString().equals("java.lang.Object")) {
+                    param.append(sep).append(bound);
+                    sep = " & ";
+                }
+            }
+            typeParams.add(param.toString());
+            typeArgs.add(p.getSimpleName().toString());
+        }
+        String params = typeParams.isEmpty() ? "" : "<" + String.join(", ", typeParams) + ">";
+        String args = typeArgs.isEmpty() ? "" : "<" + String.join(", ", typeArgs) + ">";
+
+        sb.append('\n');
+        // cases of the state machine fall through to the next state on purpose
+        sb.append("@SuppressWarnings(\"fallthrough\")\n");
+        sb.append(type.getModifiers().contains(Modifier.PUBLIC) ? "public " : "").append("final class ").append(name).append(params)
+          .append(" extends ").append(type.getQualifiedName()).append(args).append(" {\n");
+        sb.append("    private int $state;\n");
+        for (Map.Entry<String,String> f : translator.fields.entrySet()) {
+            sb.append("    private ").append(f.getValue()).append(' ').append(f.getKey()).append(";\n");
+        }
+
+        for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (c.getModifiers().contains(Modifier.PRIVATE)) {
+                continue;
+            }
+            List<String> formals = new ArrayList<>();
+            List<String> actuals = new ArrayList<>();
+            for (int i = 0; i < c.getParameters().size(); ++i) {
+                String t = c.getParameters().get(i).asType().toString();
+                if (c.isVarArgs() && i == c.getParameters().size() - 1) {
+                    t = t.substring(0, t.length() - 2) + "...";
+                }
+                formals.add(t + " p" + i);
+                actuals.add("p" + i);
+            }
+            List<String> thrown = new ArrayList<>();
+            for (TypeMirror t : c.getThrownTypes()) {
+                thrown.add(t.toString());
+            }
+            sb.append('\n');
+            sb.append("    ").append(c.getModifiers().contains(Modifier.PUBLIC) ? "public " : c.getModifiers().contains(Modifier.PROTECTED) ? "protected " : "")
+              .append(name).append('(').append(String.join(", ", formals)).append(')')
+              .append(thrown.isEmpty() ? "" : " throws " + String.join(", ", thrown)).append(" {\n");
+            sb.append("        super(").append(String.join(", ", actuals)).append(");\n");
+            sb.append("    }\n");
+        }
+
+        sb.append('\n');
+        sb.append("    @Override\n");
+        sb.append("    protected boolean isStackless() {\n");
+        sb.append("        return true;\n");
+        sb.append("    }\n");
+        sb.append('\n');
+        sb.append("    @Override\n");
+        sb.append("    protected boolean step(java.util.function.Consumer<? super ").append(out).append("> $sink) {\n");
+        sb.append("        while (true) {\n");
+        sb.append("            switch ($state) {\n");
+        sb.append("            case 0:\n");
+        sb.append(translator.out);
+        sb.append("            default:\n");
+        sb.append("                return false;\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+        if (translator.iterates) {
+            sb.append('\n');
+            sb.append("    private static <E> java.util.Iterator<E> $iterator(java.lang.Iterable<E> iterable) {\n");
+            sb.append("        return iterable.iterator();\n");
+            sb.append("    }\n");
+            sb.append("    private static <E> java.util.Iterator<E> $iterator(E[] array) {\n");
+            sb.append("        return java.util.Arrays.asList(array).iterator();\n");
+            sb.append("    }\n");
+            for (String primitive : new String[] { "int", "long", "double" }) {
+                sb.append("    private static java.util.Iterator<").append(boxed(primitive)).append("> $iterator(").append(primitive).append("[] array) {\n");
+                sb.append("        return java.util.Arrays.stream(array).iterator();\n");
+                sb.append("    }\n");
+            }
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static String boxed(String type) {
+        switch (type) {
+            case "boolean": return "java.lang.Boolean";
+            case "byte": return "java.lang.Byte";
+            case "short": return "java.lang.Short";
+            case "char": return "java.lang.Character";
+            case "int": return "java.lang.Integer";
+            case "long": return "java.lang.Long";
+            case "float": return "java.lang.Float";
+            case "double": return "java.lang.Double";
+            default: return type;
+        }
+    }
+
+    private static boolean isYield(ExpressionTree e) {
+        if (!(e instanceof MethodInvocationTree invocation)) {
+            return false;
+        }
+        ExpressionTree select = invocation.getMethodSelect();
+        if (select instanceof IdentifierTree id) {
+            return id.getName().contentEquals("yield_");
+        }
+        if (select instanceof MemberSelectTree member && member.getExpression() instanceof IdentifierTree target) {
+            return member.getIdentifier().contentEquals("yield_") && (target.getName().contentEquals("this") || target.getName().contentEquals("super"));
+        }
+        return false;
+    }
+
+    // Flattens structured statements into cases of the switch in step()
+    private static final class Translator {
+        private record Loop(String label, int breakState, int continueState) {
+            boolean isLoop() {
+                return continueState >= 0;
+            }
+        }
+
+        final StringBuilder out = new StringBuilder();
+        // hoisted locals and iterators, by name
+        final Map<String,String> fields = new LinkedHashMap<>();
+        boolean iterates;
+
+        private final Deque<Loop> loops = new ArrayDeque<>();
+        private int states = 1;
+        private boolean reachable = true;
+        // label of a labeled loop about to be translated
+        private String pendingLabel;
+
+        void body(BlockTree body) {
+            statement(body);
+            if (reachable) {
+                emit("$state = -1;");
+                emit("return false;");
+            }
+        }
+
+        private void emit(String line) {
+            out.append(INDENT).append(line).append('\n');
+        }
+
+        private void label(int state) {
+            out.append("            case ").append(state).append(":\n");
+            reachable = true;
+        }
+
+        private void jump(int state) {
+            if (reachable) {
+                emit("$state = " + state + ";");
+                emit("continue;");
+                reachable = false;
+            }
+        }
+
+        private void jumpUnless(String condition, int state) {
+            emit("if (!(" + condition + ")) {");
+            emit("    $state = " + state + ";");
+            emit("    continue;");
+            emit("}");
+        }
+
+        private void hoist(Tree at, String name, String type) {
+            if (name.startsWith("$")) {
+                throw new UnsupportedException(at, "reserved name " + name);
+            }
+            String previous = fields.putIfAbsent(name, type);
+            if (previous != null && !previous.equals(type)) {
+                throw new UnsupportedException(at, "local variable " + name + " declared both as " + previous + " and " + type);
+            }
+        }
+
+        private static String declaredType(VariableTree v) {
+            Tree type = v.getType();
+            if (type == null || type.toString().equals("var")) {
+                throw new UnsupportedException(v, "local variable " + v.getName() + " needs an explicit type");
+            }
+            return type.toString();
+        }
+
+        private void statement(StatementTree s) {
+            switch (s.getKind()) {
+                case BLOCK:
+                    for (StatementTree t : ((BlockTree) s).getStatements()) {
+                        statement(t);
+                    }
+                    break;
+                case VARIABLE:
+                    variable((VariableTree) s);
+                    break;
+                case EXPRESSION_STATEMENT:
+                    expression(((ExpressionStatementTree) s).getExpression());
+                    break;
+                case IF:
+                    ifThenElse((IfTree) s);
+                    break;
+                case WHILE_LOOP:
+                    whileLoop((WhileLoopTree) s);
+                    break;
+                case DO_WHILE_LOOP:
+                    doWhileLoop((DoWhileLoopTree) s);
+                    break;
+                case FOR_LOOP:
+                    forLoop((ForLoopTree) s);
+                    break;
+                case ENHANCED_FOR_LOOP:
+                    forEachLoop((EnhancedForLoopTree) s);
+                    break;
+                case LABELED_STATEMENT:
+                    labeled((LabeledStatementTree) s);
+                    break;
+                case BREAK:
+                    jump(target(s, ((BreakTree) s).getLabel(), false).breakState);
+                    break;
+                case CONTINUE:
+                    jump(target(s, ((ContinueTree) s).getLabel(), true).continueState);
+                    break;
+                case RETURN:
+                    // the return value only marks the end
+                    emit("$state = -1;");
+                    emit("return false;");
+                    reachable = false;
+                    break;
+                case EMPTY_STATEMENT:
+                    break;
+                default:
+                    verbatim(s);
+            }
+        }
+
+        private void variable(VariableTree v) {
+            String type = declaredType(v);
+            String name = v.getName().toString();
+            hoist(v, name, type);
+            ExpressionTree init = v.getInitializer();
+            if (init != null) {
+                // an array initializer is only valid in a declaration
+                String value = init.getKind() == Tree.Kind.NEW_ARRAY && ((NewArrayTree) init).getType() == null ? "new " + type + " " + init : init.toString();
+                emit(name + " = " + value + ";");
+            }
+        }
+
+        private void expression(ExpressionTree e) {
+            if (isYield(e)) {
+                int next = states++;
+                emit("$sink.accept(" + ((MethodInvocationTree) e).getArguments().get(0) + ");");
+                emit("$state = " + next + ";");
+                emit("return true;");
+                label(next);
+            } else {
+                checkNoYield(e);
+                emit(e + ";");
+            }
+        }
+
+        private void ifThenElse(IfTree s) {
+            checkNoYield(s.getCondition());
+            int otherwise = states++;
+            jumpUnless(s.getCondition().toString(), otherwise);
+            statement(s.getThenStatement());
+            if (s.getElseStatement() == null) {
+                label(otherwise);
+            } else {
+                int end = states++;
+                jump(end);
+                label(otherwise);
+                statement(s.getElseStatement());
+                label(end);
+            }
+        }
+
+        private void whileLoop(WhileLoopTree s) {
+            checkNoYield(s.getCondition());
+            int condition = states++;
+            int end = states++;
+            label(condition);
+            jumpUnless(s.getCondition().toString(), end);
+            loop(s.getStatement(), end, condition);
+            jump(condition);
+            label(end);
+        }
+
+        private void doWhileLoop(DoWhileLoopTree s) {
+            checkNoYield(s.getCondition());
+            int body = states++;
+            int condition = states++;
+            int end = states++;
+            label(body);
+            loop(s.getStatement(), end, condition);
+            label(condition);
+            emit("if (" + s.getCondition() + ") {");
+            emit("    $state = " + body + ";");
+            emit("    continue;");
+            emit("}");
+            label(end);
+        }
+
+        private void forLoop(ForLoopTree s) {
+            String labelName = takeLabel();
+            for (StatementTree init : s.getInitializer()) {
+                statement(init);
+            }
+            int condition = states++;
+            int update = states++;
+            int end = states++;
+            label(condition);
+            if (s.getCondition() != null) {
+                checkNoYield(s.getCondition());
+                jumpUnless(s.getCondition().toString(), end);
+            }
+            pendingLabel = labelName;
+            loop(s.getStatement(), end, update);
+            label(update);
+            for (ExpressionStatementTree u : s.getUpdate()) {
+                checkNoYield(u);
+                emit(u.getExpression() + ";");
+            }
+            jump(condition);
+            label(end);
+        }
+
+        private void forEachLoop(EnhancedForLoopTree s) {
+            checkNoYield(s.getExpression());
+            VariableTree v = s.getVariable();
+            String type = declaredType(v);
+            String iterator = "$iterator" + states;
+            fields.put(iterator, "java.util.Iterator<? extends " + boxed(type) + ">");
+            iterates = true;
+            hoist(v, v.getName().toString(), type);
+            int condition = states++;
+            int end = states++;
+            emit(iterator + " = $iterator(" + s.getExpression() + ");");
+            label(condition);
+            jumpUnless(iterator + ".hasNext()", end);
+            emit(v.getName() + " = " + iterator + ".next();");
+            loop(s.getStatement(), end, condition);
+            jump(condition);
+            label(end);
+            emit(iterator + " = null;");
+        }
+
+        private void labeled(LabeledStatementTree s) {
+            switch (s.getStatement().getKind()) {
+                case WHILE_LOOP:
+                case DO_WHILE_LOOP:
+                case FOR_LOOP:
+                case ENHANCED_FOR_LOOP:
+                    pendingLabel = s.getLabel().toString();
+                    statement(s.getStatement());
+                    break;
+                default:
+                    int end = states++;
+                    loops.push(new Loop(s.getLabel().toString(), end, -1));
+                    statement(s.getStatement());
+                    loops.pop();
+                    label(end);
+            }
+        }
+
+        private String takeLabel() {
+            String l = pendingLabel;
+            pendingLabel = null;
+            return l;
+        }
+
+        private void loop(StatementTree body, int breakState, int continueState) {
+            loops.push(new Loop(takeLabel(), breakState, continueState));
+            statement(body);
+            loops.pop();
+        }
+
+        private Loop target(Tree at, Name label, boolean isContinue) {
+            for (Loop l : loops) {
+                if (label == null ? l.isLoop() : label.contentEquals(String.valueOf(l.label))) {
+                    if (isContinue && !l.isLoop()) {
+                        throw new UnsupportedException(at, "continue to a label which is not a loop");
+                    }
+                    return l;
+                }
+            }
+            throw new UnsupportedException(at, "no enclosing loop");
+        }
+
+        // Statements not translated are copied as they are, which is only possible if they don't
+        // suspend nor jump out of themselves
+        private void verbatim(StatementTree s) {
+            new TreeScanner<Void,Integer>() {
+                private final Set<String> labels = new HashSet<>();
+                // a break may also stay inside a switch, unlike a continue
+                private int switches;
+
+                @Override
+                public Void visitMethodInvocation(MethodInvocationTree node, Integer depth) {
+                    if (isYield(node)) {
+                        throw new UnsupportedException(node, "yield_ inside " + s.getKind() + " is not supported");
+                    }
+                    return super.visitMethodInvocation(node, depth);
+                }
+                @Override
+                public Void visitReturn(ReturnTree node, Integer depth) {
+                    throw new UnsupportedException(node, "return inside " + s.getKind() + " is not supported");
+                }
+                @Override
+                public Void visitBreak(BreakTree node, Integer depth) {
+                    if (node.getLabel() == null ? depth + switches == 0 : !labels.contains(node.getLabel().toString())) {
+                        throw new UnsupportedException(node, "break out of " + s.getKind() + " is not supported");
+                    }
+                    return null;
+                }
+                @Override
+                public Void visitContinue(ContinueTree node, Integer depth) {
+                    if (node.getLabel() == null ? depth == 0 : !labels.contains(node.getLabel().toString())) {
+                        throw new UnsupportedException(node, "continue out of " + s.getKind() + " is not supported");
+                    }
+                    return null;
+                }
+                @Override
+                public Void visitLabeledStatement(LabeledStatementTree node, Integer depth) {
+                    labels.add(node.getLabel().toString());
+                    return super.visitLabeledStatement(node, depth);
+                }
+                @Override
+                public Void visitSwitch(SwitchTree node, Integer depth) {
+                    switches++;
+                    try {
+                        return super.visitSwitch(node, depth);
+                    } finally {
+                        switches--;
+                    }
+                }
+                @Override
+                public Void visitWhileLoop(WhileLoopTree node, Integer depth) {
+                    return super.visitWhileLoop(node, depth + 1);
+                }
+                @Override
+                public Void visitDoWhileLoop(DoWhileLoopTree node, Integer depth) {
+                    return super.visitDoWhileLoop(node, depth + 1);
+                }
+                @Override
+                public Void visitForLoop(ForLoopTree node, Integer depth) {
+                    return super.visitForLoop(node, depth + 1);
+                }
+                @Override
+                public Void visitEnhancedForLoop(EnhancedForLoopTree node, Integer depth) {
+                    return super.visitEnhancedForLoop(node, depth + 1);
+                }
+                @Override
+                public Void visitLambdaExpression(LambdaExpressionTree node, Integer depth) {
+                    // returns and jumps in there are its own
+                    checkNoYield(node);
+                    return null;
+                }
+                @Override
+                public Void visitClass(ClassTree node, Integer depth) {
+                    return null;
+                }
+            }.scan(s, 0);
+            for (String line : s.toString().split("\n")) {
+                if (!line.isBlank()) {
+                    emit(line.stripTrailing());
+                }
+            }
+        }
+
+        private static void checkNoYield(Tree t) {
+            new TreeScanner<Void,Void>() {
+                @Override
+                public Void visitMethodInvocation(MethodInvocationTree node, Void p) {
+                    if (isYield(node)) {
+                        throw new UnsupportedException(node, "yield_ is only supported as a statement of get() itself");
+                    }
+                    return super.visitMethodInvocation(node, p);
+                }
+                @Override
+                public Void visitClass(ClassTree node, Void p) {
+                    // yield_ of an inner generator is its own
+                    return null;
+                }
+            }.scan(t, null);
+        }
+    }
+}
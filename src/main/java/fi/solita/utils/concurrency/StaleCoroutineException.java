@@ -0,0 +1,4 @@
+package fi.solita.utils.concurrency;
+
+public class StaleCoroutineException extends CoroutineException {
+}
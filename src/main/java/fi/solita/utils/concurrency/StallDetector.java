@@ -0,0 +1,85 @@
+package fi.solita.utils.concurrency;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Watchdog for production use instead of BlockHound. Samples the carriers of a dispatcher
+// and reports a coroutine which keeps its carrier longer than the threshold without yielding,
+// which is what a blocking call (or a long computation) on a carrier looks like from the outside.
+public final class StallDetector implements AutoCloseable {
+    private final List<Carrier> carriers;
+    private final long thresholdNanos;
+    private final Consumer<String> reporter;
+    private final ScheduledExecutorService sampler;
+    
+    // per carrier: switch count at the previous sample, and since when it has been unchanged
+    private final long[] lastSwitches;
+    private final long[] stalledSince;
+    private final boolean[] reported;
+    
+    public static StallDetector start(CoroutineDispatcher dispatcher, long threshold, TimeUnit unit) {
+        return start(dispatcher, threshold, unit, System.err::println);
+    }
+    
+    public static StallDetector start(CoroutineDispatcher dispatcher, long threshold, TimeUnit unit, Consumer<String> reporter) {
+        return new StallDetector(dispatcher.carriers(), unit.toNanos(threshold), reporter);
+    }
+    
+    private StallDetector(List<Carrier> carriers, long thresholdNanos, Consumer<String> reporter) {
+        if (thresholdNanos <= 0) {
+            throw new IllegalArgumentException("threshold: " + thresholdNanos + "ns");
+        }
+        this.carriers = carriers;
+        this.thresholdNanos = thresholdNanos;
+        this.reporter = reporter;
+        this.lastSwitches = new long[carriers.size()];
+        this.stalledSince = new long[carriers.size()];
+        this.reported = new boolean[carriers.size()];
+        this.sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "StallDetector");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, thresholdNanos / 4);
+        sampler.scheduleAtFixedRate(this::sample, period, period, TimeUnit.NANOSECONDS);
+    }
+    
+    private void sample() {
+        long now = System.nanoTime();
+        for (int i = 0; i < carriers.size(); ++i) {
+            Carrier carrier = carriers.get(i);
+            Coroutine<?,?> running = carrier.running.get();
+            long switches = carrier.switches;
+            if (running == null || switches != lastSwitches[i]) {
+                lastSwitches[i] = switches;
+                stalledSince[i] = now;
+                reported[i] = false;
+            } else if (!reported[i] && now - stalledSince[i] >= thresholdNanos) {
+                reported[i] = true;
+                reporter.accept(describe(carrier, running, now - stalledSince[i]));
+            }
+        }
+    }
+    
+    private static String describe(Carrier carrier, Coroutine<?,?> running, long stalledNanos) {
+        StringBuilder sb = new StringBuilder()
+            .append(running).append(" has not yielded ").append(carrier)
+            .append(" for ").append(TimeUnit.NANOSECONDS.toMillis(stalledNanos)).append("ms");
+        Thread thread = carrier.runningThread;
+        if (thread != null) {
+            sb.append(" in thread ").append(thread.getName());
+            for (StackTraceElement e : thread.getStackTrace()) {
+                sb.append(System.lineSeparator()).append("\tat ").append(e);
+            }
+        }
+        return sb.toString();
+    }
+    
+    @Override
+    public void close() {
+        sampler.shutdownNow();
+    }
+}
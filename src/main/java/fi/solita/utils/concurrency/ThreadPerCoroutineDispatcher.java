@@ -0,0 +1,73 @@
+package fi.solita.utils.concurrency;
+
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs each coroutine on a virtual thread of its own. Where the runtime has no virtual threads,
+// a suspended coroutine would pin a whole platform thread, so falling back to those is opt-in.
+public class ThreadPerCoroutineDispatcher extends CoroutineDispatcher {
+    private static final int FALLBACK_STACK_SIZE = 256 * 1024;
+    private static final AtomicBoolean fallbackReported = new AtomicBoolean(false);
+    
+    private final boolean virtual;
+    private final Carrier carrier;
+    
+    public ThreadPerCoroutineDispatcher() {
+        this(false);
+    }
+    
+    public ThreadPerCoroutineDispatcher(boolean platformThreadFallback) {
+        ThreadFactory factory = virtualThreadFactory();
+        virtual = factory != null;
+        if (!virtual) {
+            if (!platformThreadFallback) {
+                throw new IllegalStateException("No virtual threads in this runtime. Allow falling back to platform threads explicitly if that's intended");
+            }
+            if (fallbackReported.compareAndSet(false, true)) {
+                System.err.println(ThreadPerCoroutineDispatcher.class.getSimpleName() + ": no virtual threads in this runtime, running each coroutine on a platform thread with a " + FALLBACK_STACK_SIZE / 1024 + "KB stack");
+            }
+            factory = platformThreadFactory();
+        }
+        carrier = new Carrier(this, factory);
+    }
+    
+    public boolean usesVirtualThreads() {
+        return virtual;
+    }
+    
+    @Override
+    Carrier carrierFor() {
+        return carrier;
+    }
+    
+    @Override
+    List<Carrier> carriers() {
+        return List.of(carrier);
+    }
+    
+    public static boolean virtualThreadsAvailable() {
+        return virtualThreadFactory() != null;
+    }
+    
+    private static ThreadFactory platformThreadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(null, r, "Coroutine-" + counter.incrementAndGet(), FALLBACK_STACK_SIZE);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+    
+    // null if this runtime has no virtual threads
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // pre-21 runtime, or preview features not enabled
+            return null;
+        }
+    }
+}
@@ -0,0 +1,4 @@
+package fi.solita.utils.concurrency;
+
+public class TimedOutException extends CancelledException {
+}
\ No newline at end of file
@@ -1,36 +1,113 @@
 package fi.solita.utils.concurrency;
 
+import java.util.Arrays;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
+// Stack-safe computation: a finished value, a step producing the next trampoline, or a flatMap of
+// another trampoline. get() interprets these in a loop, keeping pending flatMap continuations in an
+// explicit stack instead of the call stack, so both deep recursion and long map/flatMap chains are safe.
 public class Trampoline<T> {
-    private final T t;
-    private final Supplier<Trampoline<T>> f;
-    
+    private static final int DONE = 0;
+    private static final int STEP = 1;
+    private static final int FLAT_MAP = 2;
+
+    private static final Trampoline<?> NULL = new Trampoline<>((Object) null);
+
+    private final int kind;
+    // DONE: the result, STEP: the supplier, FLAT_MAP: the source trampoline
+    private final Object value;
+    // FLAT_MAP only
+    private final Function<Object,Trampoline<?>> continuation;
+
     public Trampoline(T t) {
-        this.t = t;
-        this.f = null;
+        this.kind = DONE;
+        this.value = t;
+        this.continuation = null;
     }
-    
+
     public Trampoline(Supplier<Trampoline<T>> f) {
-        this.t = null;
-        this.f = f;
+        this.kind = STEP;
+        this.value = f;
+        this.continuation = null;
     }
-    
-    public T get() {
-        Trampoline<T> next = this;
-        while (true) {
-            if (next.t != null) {
-                return next.t;
-            }
-            next = next.f.get();
-        }
+
+    @SuppressWarnings("unchecked")
+    private <S> Trampoline(Trampoline<S> source, Function<? super S,? extends Trampoline<T>> f) {
+        this.kind = FLAT_MAP;
+        this.value = source;
+        this.continuation = (Function<Object,Trampoline<?>>) (Function<?,?>) f;
     }
-    
+
     public static <T> Trampoline<T> step(Supplier<Trampoline<T>> f) {
         return new Trampoline<>(f);
     }
-    
+
+    @SuppressWarnings("unchecked")
     public static <T> Trampoline<T> finished(T t) {
-        return new Trampoline<>(t);
+        return t == null ? (Trampoline<T>) NULL : new Trampoline<>(t);
+    }
+
+    public <R> Trampoline<R> flatMap(Function<? super T,? extends Trampoline<R>> f) {
+        return new Trampoline<>(this, f);
+    }
+
+    public <R> Trampoline<R> map(Function<? super T,? extends R> f) {
+        return new Trampoline<R>(this, t -> finished(f.apply(t)));
+    }
+
+    public T get() {
+        return run(0, null);
+    }
+
+    // Runs yield every given number of steps, e.g. a coroutine's yield_ to let others have the carrier
+    // during a long computation.
+    public T get(int stepsPerYield, Runnable yield) {
+        if (stepsPerYield < 1) {
+            throw new IllegalArgumentException("stepsPerYield: " + stepsPerYield);
+        }
+        return run(stepsPerYield, yield);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private T run(int stepsPerYield, Runnable yield) {
+        Trampoline<?> current = this;
+        // pending continuations, top at size - 1
+        Function<Object,Trampoline<?>>[] stack = null;
+        int size = 0;
+        int steps = 0;
+        while (true) {
+            switch (current.kind) {
+                case DONE:
+                    if (size == 0) {
+                        return (T) current.value;
+                    }
+                    Function<Object,Trampoline<?>> k = stack[--size];
+                    stack[size] = null;
+                    current = k.apply(current.value);
+                    break;
+                case STEP:
+                    current = ((Supplier<Trampoline<?>>) current.value).get();
+                    break;
+                default:
+                    Trampoline<?> source = (Trampoline<?>) current.value;
+                    if (source.kind == DONE) {
+                        // nothing to wait for, continue right away
+                        current = current.continuation.apply(source.value);
+                    } else {
+                        if (stack == null) {
+                            stack = new Function[16];
+                        } else if (size == stack.length) {
+                            stack = Arrays.copyOf(stack, size * 2);
+                        }
+                        stack[size++] = current.continuation;
+                        current = source;
+                    }
+            }
+            if (yield != null && ++steps == stepsPerYield) {
+                steps = 0;
+                yield.run();
+            }
+        }
     }
-}
\ No newline at end of file
+}
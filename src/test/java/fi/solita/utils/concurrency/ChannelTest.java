@@ -0,0 +1,151 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class ChannelTest {
+    @Test
+    public void rendezvousPreservesOrder() {
+        Channel<Integer> channel = Channel.rendezvous();
+        List<Integer> received = new ArrayList<>();
+        Coroutine.start(() -> {
+            CoRunnable producer = Coroutine.start(() -> {
+                for (int i = 0; i < 100; ++i) {
+                    channel.send(i);
+                }
+                channel.close();
+            });
+            for (Integer i : channel) {
+                received.add(i);
+            }
+            producer.join();
+        }).join();
+        
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            expected.add(i);
+        }
+        assertEquals(expected, received);
+    }
+    
+    @Test
+    public void boundedChannelSuspendsSenderWhenFull() {
+        Channel<Integer> channel = Channel.bounded(2);
+        AtomicInteger sent = new AtomicInteger();
+        Coroutine.start(() -> {
+            CoRunnable producer = Coroutine.start(() -> {
+                for (int i = 0; i < 3; ++i) {
+                    channel.send(i);
+                    sent.incrementAndGet();
+                }
+            });
+            while (sent.get() < 2) {
+                Coroutine.scheduler.sleep(1, TimeUnit.MILLISECONDS);
+            }
+            Coroutine.scheduler.sleep(50, TimeUnit.MILLISECONDS);
+            assertEquals(2, sent.get());
+            assertFalse(channel.trySend(42));
+            
+            assertEquals(0, (int) channel.receive());
+            producer.join();
+            assertEquals(3, sent.get());
+            assertEquals(1, (int) channel.receive());
+            assertEquals(2, (int) channel.receive());
+            assertNull(channel.tryReceive());
+        }).join();
+    }
+    
+    @Test
+    public void closedChannelIsDrainedBeforeFailing() {
+        Channel<String> channel = Channel.unbounded();
+        channel.send("a");
+        channel.send("b");
+        channel.close();
+        
+        try {
+            channel.send("c");
+            fail("should fail");
+        } catch (ChannelClosedException e) {
+            // expected
+        }
+        assertEquals("a", channel.receive());
+        assertEquals("b", channel.receive());
+        try {
+            channel.receive();
+            fail("should fail");
+        } catch (ChannelClosedException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void closeWakesUpWaitingReceivers() {
+        Channel<String> channel = Channel.rendezvous();
+        Coroutine.start(() -> {
+            CoSupplier<Boolean> receiver = Coroutine.start(() -> {
+                try {
+                    channel.receive();
+                    return false;
+                } catch (ChannelClosedException e) {
+                    return true;
+                }
+            });
+            Coroutine.scheduler.sleep(20, TimeUnit.MILLISECONDS);
+            channel.close();
+            assertTrue(receiver.join());
+        }).join();
+    }
+    
+    private static void fanInFanOut(CoroutineDispatcher dispatcher, Channel<Integer> channel) {
+        int producers = 4;
+        int consumers = 3;
+        int perProducer = 2_000;
+        AtomicLong sum = new AtomicLong();
+        AtomicInteger count = new AtomicInteger();
+        
+        Coroutine.start(dispatcher, () -> {
+            List<CoRunnable> ps = new ArrayList<>();
+            for (int p = 0; p < producers; ++p) {
+                ps.add(Coroutine.start(() -> {
+                    for (int i = 1; i <= perProducer; ++i) {
+                        channel.send(i);
+                    }
+                }));
+            }
+            List<CoRunnable> cs = new ArrayList<>();
+            for (int c = 0; c < consumers; ++c) {
+                cs.add(Coroutine.start(() -> {
+                    for (Integer i : channel) {
+                        sum.addAndGet(i);
+                        count.incrementAndGet();
+                    }
+                }));
+            }
+            ps.forEach(CoRunnable::join);
+            channel.close();
+            cs.forEach(CoRunnable::join);
+        }).join();
+        
+        assertEquals(producers * perProducer, count.get());
+        assertEquals(producers * (long) perProducer * (perProducer + 1) / 2, sum.get());
+    }
+    
+    @Test
+    public void fanInFanOutThroughBoundedChannel() {
+        fanInFanOut(Coroutine.dispatcher, Channel.bounded(8));
+    }
+    
+    @Test
+    public void fanInFanOutAcrossShards() {
+        fanInFanOut(new ShardedDispatcher(4), Channel.bounded(3));
+        fanInFanOut(new ShardedDispatcher(4), Channel.rendezvous());
+        fanInFanOut(new ShardedDispatcher(4), Channel.unbounded());
+    }
+}
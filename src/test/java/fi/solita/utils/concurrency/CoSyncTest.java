@@ -0,0 +1,153 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CoSyncTest {
+    @Test
+    public void mutexSuspendsInsteadOfBlockingTheCarrier() {
+        CoMutex mutex = new CoMutex();
+        int[] inside = new int[2];
+        CoroutineDispatcher single = new SingleCarrierDispatcher();
+        Coroutine.start(single, () -> {
+            List<CoRunnable> workers = new ArrayList<>();
+            for (int i = 0; i < 5; ++i) {
+                workers.add(Coroutine.start(() -> {
+                    mutex.withLock(() -> {
+                        inside[0]++;
+                        inside[1] = Math.max(inside[1], inside[0]);
+                        // lets the others run into the lock meanwhile
+                        Coroutine.scheduler.sleep(2, TimeUnit.MILLISECONDS);
+                        inside[0]--;
+                        return null;
+                    });
+                }));
+            }
+            workers.forEach(CoRunnable::join);
+        }).join();
+        assertEquals(1, inside[1]);
+        assertFalse(mutex.isLocked());
+    }
+
+    @Test
+    public void waitersAreServedInArrivalOrder() {
+        CoMutex mutex = new CoMutex();
+        Queue<Integer> order = new ConcurrentLinkedQueue<>();
+        Coroutine.start(new SingleCarrierDispatcher(), () -> {
+            mutex.lock();
+            List<CoRunnable> waiters = new ArrayList<>();
+            for (int i = 0; i < 3; ++i) {
+                int n = i;
+                waiters.add(Coroutine.start(() -> {
+                    mutex.lock();
+                    order.add(n);
+                    mutex.unlock();
+                }));
+                while (mutex.queueLength() <= n) {
+                    Coroutine.scheduler.sleep(1, TimeUnit.MILLISECONDS);
+                }
+            }
+            assertFalse("no barging past waiters", mutex.tryLock());
+            mutex.unlock();
+            waiters.forEach(CoRunnable::join);
+        }).join();
+        assertEquals(List.of(0, 1, 2), new ArrayList<>(order));
+    }
+
+    @Test
+    public void semaphoreHoldsBackSmallerRequestsBehindALargerOne() {
+        CoSemaphore semaphore = new CoSemaphore(1);
+        Coroutine.start(() -> {
+            CoRunnable large = Coroutine.start(() -> semaphore.acquire(2));
+            Coroutine.scheduler.sleep(10, TimeUnit.MILLISECONDS);
+            assertFalse(large.isFinished());
+            assertFalse(semaphore.tryAcquire());
+            semaphore.release();
+            large.join();
+            assertEquals(0, semaphore.availablePermits());
+            assertFalse(semaphore.tryAcquire(1, 10, TimeUnit.MILLISECONDS));
+            semaphore.release(2);
+            assertTrue(semaphore.tryAcquire(2, 10, TimeUnit.MILLISECONDS));
+        }).join();
+    }
+
+    @Test
+    public void latchLetsEveryoneThroughOnceOpen() {
+        CoCountDownLatch latch = new CoCountDownLatch(2);
+        Coroutine.start(() -> {
+            List<CoRunnable> waiters = new ArrayList<>();
+            for (int i = 0; i < 3; ++i) {
+                waiters.add(Coroutine.start(() -> latch.await()));
+            }
+            assertFalse(latch.await(10, TimeUnit.MILLISECONDS));
+            latch.countDown();
+            latch.countDown();
+            latch.countDown();
+            waiters.forEach(CoRunnable::join);
+            assertEquals(0, latch.getCount());
+            assertTrue(latch.await(0, TimeUnit.MILLISECONDS));
+        }).join();
+    }
+
+    @Test
+    public void readersWaitBehindAWaitingWriter() {
+        CoReadWriteLock lock = new CoReadWriteLock();
+        Queue<String> order = new ConcurrentLinkedQueue<>();
+        Coroutine.start(new SingleCarrierDispatcher(), () -> {
+            lock.lockRead();
+            assertTrue(lock.tryLockRead());
+            CoRunnable writer = Coroutine.start(() -> {
+                lock.lockWrite();
+                order.add("writer");
+                lock.unlockWrite();
+            });
+            while (lock.queueLength() < 1) {
+                Coroutine.scheduler.sleep(1, TimeUnit.MILLISECONDS);
+            }
+            CoRunnable reader = Coroutine.start(() -> {
+                lock.lockRead();
+                order.add("reader");
+                lock.unlockRead();
+            });
+            while (lock.queueLength() < 2) {
+                Coroutine.scheduler.sleep(1, TimeUnit.MILLISECONDS);
+            }
+            assertEquals(2, lock.getReadLockCount());
+            assertFalse(lock.tryLockRead());
+            lock.unlockRead();
+            lock.unlockRead();
+            writer.join();
+            reader.join();
+        }).join();
+        assertEquals(List.of("writer", "reader"), new ArrayList<>(order));
+        assertFalse(lock.isWriteLocked());
+        assertEquals(0, lock.getReadLockCount());
+    }
+
+    @Test
+    public void timedOutAndCancelledWaitersLeaveTheQueue() {
+        CoMutex mutex = new CoMutex();
+        Coroutine.start(() -> {
+            mutex.lock();
+            assertFalse(mutex.tryLock(10, TimeUnit.MILLISECONDS));
+            CoRunnable cancelled = Coroutine.start(mutex::lock);
+            Coroutine.scheduler.sleep(10, TimeUnit.MILLISECONDS);
+            cancelled.cancel();
+            try {
+                cancelled.join();
+                fail();
+            } catch (CancelledException expected) {
+            }
+            mutex.unlock();
+            assertTrue(mutex.tryLock());
+            assertTrue(mutex.toString().endsWith("locked)"));
+        }).join();
+    }
+}
@@ -0,0 +1,86 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class CoroutineDispatcherTest {
+    private static void awaitCount(AtomicInteger counter, int expected) {
+        long deadline = System.nanoTime() + 10_000_000_000l;
+        while (counter.get() < expected) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("timed out");
+            }
+        }
+    }
+    
+    @Test
+    public void shardsRunInParallel() {
+        ShardedDispatcher dispatcher = new ShardedDispatcher(2);
+        AtomicInteger arrived = new AtomicInteger();
+        CoRunnable a = Coroutine.start(dispatcher, () -> {
+            arrived.incrementAndGet();
+            awaitCount(arrived, 2);
+        });
+        CoRunnable b = Coroutine.start(dispatcher, () -> {
+            arrived.incrementAndGet();
+            awaitCount(arrived, 2);
+        });
+        a.join();
+        b.join();
+        assertEquals(2, arrived.get());
+    }
+    
+    @Test
+    public void idleShardStealsUnstartedWork() {
+        ShardedDispatcher dispatcher = new ShardedDispatcher(2);
+        AtomicReference<Carrier> parent = new AtomicReference<>();
+        AtomicReference<Carrier> child = new AtomicReference<>();
+        AtomicInteger done = new AtomicInteger();
+        Coroutine.start(dispatcher, () -> {
+            parent.set(Carrier.current());
+            Coroutine.start(() -> {
+                child.set(Carrier.current());
+                done.incrementAndGet();
+            });
+            // keep the parent's carrier busy until the child has run elsewhere
+            awaitCount(done, 1);
+        }).join();
+        
+        assertNotNull(child.get());
+        assertNotSame(parent.get(), child.get());
+        assertSame(dispatcher, child.get().dispatcher);
+    }
+    
+    @Test
+    public void childrenInheritDispatcher() {
+        ShardedDispatcher dispatcher = new ShardedDispatcher(1);
+        AtomicReference<CoroutineDispatcher> inner = new AtomicReference<>();
+        Coroutine.start(dispatcher, () -> {
+            Coroutine.start(() -> {
+                inner.set(CoroutineDispatcher.current());
+            }).join();
+        }).join();
+        assertSame(dispatcher, inner.get());
+    }
+    
+    @Test
+    public void threadPerCoroutineFallsBackToPlatformThreadsOnlyWhenAllowed() {
+        if (ThreadPerCoroutineDispatcher.virtualThreadsAvailable()) {
+            assertTrue(new ThreadPerCoroutineDispatcher().usesVirtualThreads());
+            return;
+        }
+        try {
+            new ThreadPerCoroutineDispatcher();
+            fail("should not have fallen back silently");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        ThreadPerCoroutineDispatcher fallback = new ThreadPerCoroutineDispatcher(true);
+        assertFalse(fallback.usesVirtualThreads());
+        assertEquals("ran", Coroutine.start(fallback, () -> "ran").join());
+    }
+}
@@ -0,0 +1,93 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CoroutineLocalTest {
+    static final CoroutineLocal<String> requestId = new CoroutineLocal<>();
+
+    @Test
+    public void valueFollowsTheCoroutineAcrossSuspensions() {
+        CoSupplier<String> a = Coroutine.start(() -> {
+            requestId.set("a");
+            Coroutine.scheduler.sleep(20, TimeUnit.MILLISECONDS);
+            return requestId.get();
+        });
+        CoSupplier<String> b = Coroutine.start(() -> {
+            requestId.set("b");
+            Coroutine.scheduler.sleep(10, TimeUnit.MILLISECONDS);
+            return requestId.get();
+        });
+        assertEquals("a", a.join());
+        assertEquals("b", b.join());
+        assertNull(requestId.get());
+    }
+
+    @Test
+    public void childrenStartWithASnapshotOfTheParent() {
+        Coroutine.start(() -> {
+            requestId.set("parent");
+            CoSupplier<String> child = new CoSupplier<>() {
+                @Override
+                public String get() {
+                    String inherited = requestId.get();
+                    requestId.set("child");
+                    yield_(requestId.get());
+                    return inherited;
+                }
+            };
+            assertEquals("child", child.resume());
+            assertEquals("parent", requestId.get());
+            requestId.set("changed");
+            assertEquals("parent", child.resume());
+            assertEquals("changed", requestId.get());
+        }).join();
+    }
+
+    @Test
+    public void coroutinesInheritFromTheStartingThread() {
+        requestId.set("thread");
+        try {
+            assertEquals("thread", Coroutine.start(() -> requestId.get()).join());
+            Coroutine.start(() -> requestId.set("coroutine")).join();
+            assertEquals("thread", requestId.get());
+        } finally {
+            requestId.remove();
+        }
+        assertNull(Coroutine.start(() -> requestId.get()).join());
+    }
+
+    @Test
+    public void initialValuePerCoroutine() {
+        AtomicInteger counter = new AtomicInteger();
+        CoroutineLocal<Integer> id = CoroutineLocal.withInitial(counter::incrementAndGet);
+        int first = Coroutine.start(() -> id.get() + id.get()).join();
+        int second = Coroutine.start(() -> id.get()).join();
+        assertEquals(2, first);
+        assertEquals(2, second);
+        Coroutine.start(() -> {
+            id.set(42);
+            id.remove();
+            assertEquals(3, (int) id.get());
+        }).join();
+    }
+
+    @Test
+    public void resetClearsValues() {
+        CoSupplier<String> c = new CoSupplier<>() {
+            @Override
+            public String get() {
+                String ret = requestId.get();
+                requestId.set("set");
+                return ret;
+            }
+        };
+        c.start().join();
+        c.reset();
+        assertNull(c.start().join());
+    }
+}
@@ -0,0 +1,128 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.solita.utils.concurrency.CoroutineMetrics.Histogram;
+
+public class CoroutineMetricsTest {
+    @Before
+    public void enable() {
+        CoroutineMetrics.reset();
+        CoroutineMetrics.enable();
+    }
+    
+    @After
+    public void disable() {
+        CoroutineMetrics.disable();
+        CoroutineMetrics.reset();
+    }
+    
+    private static CoSupplier<Integer> counter(String name, int count) {
+        return new CoSupplier<Integer>(name) {
+            @Override
+            public Integer get() {
+                for (int i = 0; i < count; ++i) {
+                    yield_(i);
+                }
+                return count;
+            }
+        };
+    }
+    
+    @Test
+    public void countsResumesAndYieldsPerName() {
+        SingleCarrierDispatcher dispatcher = new SingleCarrierDispatcher();
+        Coroutine.start(dispatcher, () -> {
+            for (int n = 0; n < 3; ++n) {
+                CoSupplier<Integer> c = counter("counter", 10);
+                for (int i = 0; i <= 10; ++i) {
+                    c.resume();
+                }
+            }
+        }).join();
+        
+        CoroutineMetrics.Stats stats = CoroutineMetrics.stats("counter");
+        assertEquals(3, stats.getStarted());
+        assertEquals(3 * 11, stats.getResumes());
+        assertEquals(3 * 10, stats.getYields());
+        assertEquals(3, stats.getFirstResumeNanos().getCount());
+        assertEquals(3, stats.getQueueDepth().getCount());
+        assertNotNull(CoroutineMetrics.stats(CoroutineMetrics.UNNAMED));
+    }
+    
+    @Test
+    public void separatesRunningFromSuspendedTime() {
+        NaiveAsyncTimer timer = new NaiveAsyncTimer();
+        Coroutine.start(new SingleCarrierDispatcher(), () -> {
+            new CoRunnable("sleeper") {
+                @Override
+                public void run() {
+                    timer.sleep(100, TimeUnit.MILLISECONDS);
+                }
+            }.start().join();
+        }).join();
+        
+        CoroutineMetrics.Stats stats = CoroutineMetrics.stats("sleeper");
+        assertTrue(stats.toString(), stats.getSuspendedNanos() >= TimeUnit.MILLISECONDS.toNanos(90));
+        assertTrue(stats.toString(), stats.getRunningNanos() < TimeUnit.MILLISECONDS.toNanos(90));
+    }
+    
+    @Test
+    public void recordsNothingWhenDisabled() {
+        CoroutineMetrics.disable();
+        Coroutine.start(new SingleCarrierDispatcher(), () -> {
+            CoSupplier<Integer> c = counter("disabled", 1);
+            c.resume();
+            c.resume();
+        }).join();
+        assertNull(CoroutineMetrics.stats("disabled"));
+        assertTrue(CoroutineMetrics.stats().isEmpty());
+    }
+    
+    @Test
+    public void histogramPercentilesAreWithinPrecision() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 10_000; ++i) {
+            h.record(i * 1000l);
+        }
+        assertEquals(10_000, h.getCount());
+        assertEquals(10_000_000, h.getMax());
+        assertEquals(5_000_000, h.getP50(), 5_000_000 / 32.0);
+        assertEquals(9_900_000, h.getP99(), 9_900_000 / 32.0);
+        assertEquals(1000, h.percentile(0), 1000 / 32.0);
+        for (long v : new long[] { 0, 1, 31, 32, 33, 1000, Long.MAX_VALUE }) {
+            int bucket = Histogram.bucket(v);
+            assertTrue(v + " in bucket " + bucket, Histogram.highestValue(bucket) >= v);
+            assertTrue(v + " in bucket " + bucket, bucket == 0 || Histogram.highestValue(bucket - 1) < v);
+        }
+    }
+    
+    @Test
+    public void exposesStatsThroughJmx() throws Exception {
+        CoroutineMetrics.registerMBeans();
+        Coroutine.start(new SingleCarrierDispatcher(), () -> {
+            CoSupplier<Integer> c = counter("jmx", 2);
+            for (int i = 0; i < 3; ++i) {
+                c.resume();
+            }
+        }).join();
+        
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(2l, server.getAttribute(CoroutineMetrics.objectName("jmx"), "Yields"));
+        CompositeData firstResume = (CompositeData) server.getAttribute(CoroutineMetrics.objectName("jmx"), "FirstResumeNanos");
+        assertEquals(1l, firstResume.get("count"));
+        
+        CoroutineMetrics.reset();
+        assertFalse(server.isRegistered(CoroutineMetrics.objectName("jmx")));
+    }
+}
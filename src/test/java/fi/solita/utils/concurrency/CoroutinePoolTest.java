@@ -0,0 +1,175 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CoroutinePoolTest {
+    private final SingleCarrierDispatcher dispatcher = new SingleCarrierDispatcher();
+
+    @Test
+    public void joinedCoroutinesAreReused() {
+        CoroutinePool pool = new CoroutinePool(dispatcher, 4);
+        for (int i = 0; i < 100; ++i) {
+            int n = i;
+            assertEquals(n * 2, (int) pool.start(() -> n * 2).join());
+        }
+        assertEquals(1, pool.idleCount());
+    }
+
+    @Test
+    public void suspendingBodiesAreReused() {
+        CoroutinePool pool = new CoroutinePool(dispatcher, 4);
+        List<CoroutinePool.Handle<Integer>> handles = new ArrayList<>();
+        for (int round = 0; round < 3; ++round) {
+            for (int i = 0; i < 10; ++i) {
+                int n = i;
+                handles.add(pool.start(() -> {
+                    Coroutine.scheduler.sleep(1, TimeUnit.MILLISECONDS);
+                    return n;
+                }));
+            }
+            for (int i = 0; i < 10; ++i) {
+                assertEquals(i, (int) handles.get(i).join());
+            }
+            handles.clear();
+        }
+        assertEquals(4, pool.idleCount());
+    }
+
+    @Test
+    public void staleHandleFailsFast() {
+        CoroutinePool pool = new CoroutinePool(dispatcher, 4);
+        CoroutinePool.Handle<String> first = pool.start(() -> "first");
+        assertEquals("first", first.join());
+        assertTrue(first.isStale());
+
+        CoroutinePool.Handle<String> second = pool.start(() -> "second");
+        assertSame(first.shell, second.shell);
+        for (Runnable use : List.<Runnable>of(first::join, first::cancel, first::isFinished)) {
+            try {
+                use.run();
+                fail();
+            } catch (StaleCoroutineException e) {
+                // ok
+            }
+        }
+        assertFalse(second.isCancelled());
+        assertEquals("second", second.join());
+    }
+
+    @Test
+    public void concurrentJoinersDontSeeTheNextRun() {
+        CoroutinePool pool = new CoroutinePool(dispatcher, 4);
+        CoroutinePool.Handle<String> handle = pool.start(() -> {
+            Coroutine.scheduler.sleep(20, TimeUnit.MILLISECONDS);
+            return "first";
+        });
+        Queue<String> results = new ConcurrentLinkedQueue<>();
+        Runnable joiner = () -> {
+            try {
+                results.add(handle.join());
+                // reuses the coroutine right away
+                pool.start(() -> "second");
+            } catch (StaleCoroutineException e) {
+                results.add("stale");
+            }
+        };
+        CoRunnable a = Coroutine.start(dispatcher, joiner);
+        CoRunnable b = Coroutine.start(dispatcher, joiner);
+        a.join();
+        b.join();
+        assertEquals(2, results.size());
+        assertTrue(results.contains("first"));
+        assertTrue(results.contains("stale"));
+    }
+
+    @Test
+    public void staleCancelDoesNotReachTheNextRun() throws InterruptedException {
+        CoroutinePool pool = new CoroutinePool(dispatcher, 1);
+        for (int round = 0; round < 200; ++round) {
+            CoroutinePool.Handle<String> first = pool.start(() -> "first");
+            // keeps cancelling all through the recycling, until the handle goes stale
+            Thread canceller = new Thread(() -> {
+                try {
+                    while (true) {
+                        first.cancel();
+                    }
+                } catch (StaleCoroutineException e) {
+                    // done
+                }
+            });
+            canceller.start();
+            try {
+                first.join();
+            } catch (CancelledException e) {
+                // ok
+            }
+            // reuses the coroutine while the cancel may still be on its way
+            CoroutinePool.Handle<String> second = pool.start(() -> {
+                Coroutine.scheduler.sleep(1, TimeUnit.MILLISECONDS);
+                return "second";
+            });
+            canceller.join();
+            assertFalse(second.isCancelled());
+            assertEquals("second", second.join());
+        }
+    }
+
+    @Test
+    public void failedCoroutinesAreReusedToo() {
+        CoroutinePool pool = new CoroutinePool(dispatcher, 4);
+        try {
+            pool.start((Runnable) () -> {
+                throw new UnsupportedOperationException("failed");
+            }).join();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // rethrown by ForkJoinTask.join as a copy with the original as its cause
+            assertTrue(e.getMessage().endsWith("failed"));
+        }
+        assertEquals(1, pool.idleCount());
+        assertEquals("ok", pool.start(() -> "ok").join());
+    }
+
+    @Test
+    public void resetMakesFinishedCoroutineStartable() {
+        Generator<Integer> g = new Generator<Integer>() {
+            @Override
+            public Integer get() {
+                for (int i = 0; i < 3; ++i) {
+                    yield_(i);
+                }
+                return null;
+            }
+        };
+        for (int round = 0; round < 3; ++round) {
+            Iterator<Integer> it = g.iterator();
+            for (int i = 0; i < 3; ++i) {
+                assertEquals(i, (int) it.next());
+            }
+            assertFalse(it.hasNext());
+            assertTrue(g.isFinished());
+            g.reset();
+            assertFalse(g.isStarted());
+            assertFalse(g.isFinished());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unfinishedCoroutineCannotBeReset() {
+        CoRunnable c = Coroutine.start(dispatcher, () -> Coroutine.scheduler.sleep(100, TimeUnit.MILLISECONDS));
+        try {
+            c.reset();
+        } finally {
+            c.join();
+        }
+    }
+}
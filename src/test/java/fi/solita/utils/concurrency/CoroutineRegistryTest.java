@@ -0,0 +1,114 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CoroutineRegistryTest {
+    private final SingleCarrierDispatcher dispatcher = new SingleCarrierDispatcher();
+
+    @Before
+    public void enable() {
+        CoroutineRegistry.enable();
+    }
+
+    @After
+    public void disable() {
+        CoroutineRegistry.disable();
+    }
+
+    private static Generator<Integer> counter(String name, int count) {
+        return new Generator<Integer>(name) {
+            @Override
+            public Integer get() {
+                for (int i = 0; i < count; ++i) {
+                    yield_(i);
+                }
+                return count;
+            }
+        };
+    }
+
+    @Test
+    public void listsCoroutinesUntilFinished() {
+        Generator<Integer> g = counter("listed", 1);
+        Coroutine.start(dispatcher, () -> {
+            g.resume();
+        }).join();
+        assertTrue(CoroutineRegistry.live().contains(g));
+        String dump = Coroutine.dump();
+        assertTrue(dump, dump.contains(g + " " + g.state() + " suspended"));
+
+        Coroutine.start(dispatcher, () -> {
+            g.resume();
+        }).join();
+        g.join();
+        assertFalse(CoroutineRegistry.live().contains(g));
+        assertFalse(Coroutine.dump().contains("listed"));
+    }
+
+    @Test
+    public void dumpShowsWhereSuspended() {
+        CoRunnable sleeper = new CoRunnable("sleeper") {
+            @Override
+            public void run() {
+                Coroutine.scheduler.sleep(10, TimeUnit.SECONDS);
+            }
+        }.start(dispatcher);
+        try {
+            String dump;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            do {
+                dump = CoroutineRegistry.dump(true);
+            } while (!dump.contains(sleeper + " OTHER suspended") && System.nanoTime() < deadline);
+            assertTrue(dump, dump.contains(sleeper + " OTHER suspended"));
+            assertTrue(dump, dump.contains("NaiveAsyncTimer.sleep"));
+        } finally {
+            sleeper.cancel();
+        }
+    }
+
+    @Test
+    public void finishedCoroutinesAreUnlinked() {
+        Coroutine.start(dispatcher, () -> {
+            for (int i = 0; i < 3000; ++i) {
+                Coroutine.start(() -> {}).join();
+            }
+        }).join();
+        CoroutineRegistry.dump(false);
+        // the head is never unlinked, and coroutines of other tests may still be finishing
+        assertTrue(String.valueOf(CoroutineRegistry.entries()), CoroutineRegistry.entries() < 10);
+    }
+
+    @Test
+    public void disabledRegistersNothing() {
+        CoroutineRegistry.disable();
+        CoSupplier<Integer> c = Coroutine.start(dispatcher, () -> {
+            Coroutine.scheduler.sleep(1, TimeUnit.MILLISECONDS);
+            return 1;
+        });
+        assertFalse(CoroutineRegistry.live().contains(c));
+        c.join();
+    }
+
+    @Test
+    public void dumpsThroughJmx() throws Exception {
+        CoroutineRegistry.registerMBean();
+        Generator<Integer> g = counter("jmx", 1);
+        Coroutine.start(dispatcher, () -> {
+            g.resume();
+        }).join();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String dump = (String) server.invoke(CoroutineRegistry.objectName(), "dump", null, null);
+        assertTrue(dump, dump.contains(g.toString()));
+        assertTrue((Integer) server.getAttribute(CoroutineRegistry.objectName(), "LiveCount") >= 1);
+    }
+}
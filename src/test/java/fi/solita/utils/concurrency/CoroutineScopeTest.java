@@ -0,0 +1,119 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CoroutineScopeTest {
+    private final SingleCarrierDispatcher dispatcher = new SingleCarrierDispatcher();
+    
+    @Test
+    public void joinWaitsForAllChildren() {
+        CoroutineScope scope = new CoroutineScope(dispatcher);
+        AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 10; ++i) {
+            int delay = i;
+            scope.start(() -> {
+                Coroutine.scheduler.sleep(delay * 5, TimeUnit.MILLISECONDS);
+                done.incrementAndGet();
+            });
+        }
+        scope.join();
+        assertEquals(10, done.get());
+    }
+    
+    @Test
+    public void firstFailureCancelsSiblings() {
+        CoroutineScope scope = new CoroutineScope(dispatcher);
+        CoRunnable blocked = scope.start(() -> {
+            Coroutine.scheduler.block();
+        });
+        scope.start(() -> {
+            Coroutine.scheduler.sleep(10, TimeUnit.MILLISECONDS);
+            throw new UnsupportedOperationException("failed");
+        });
+        try {
+            scope.join();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertTrue(blocked.isCancelled());
+        try {
+            blocked.join();
+            fail();
+        } catch (CancelledException e) {
+            // ok
+        }
+    }
+    
+    @Test
+    public void cancelWakesYieldedCoroutine() {
+        Generator<Integer> g = new Generator<Integer>() {
+            @Override
+            public Integer get() {
+                for (int i = 0; true; ++i) {
+                    yield_(i);
+                }
+            }
+        }.start(dispatcher);
+        assertEquals(0, (int) g.resume());
+        g.cancel();
+        try {
+            g.join();
+            fail();
+        } catch (CancelledException e) {
+            // ok
+        }
+        assertTrue(g.isFinished());
+    }
+    
+    @Test
+    public void withTimeoutCancelsAtNextSuspension() {
+        long start = System.nanoTime();
+        try {
+            CoroutineScope.withTimeout(50, TimeUnit.MILLISECONDS, () -> Coroutine.scheduler.sleep(10, TimeUnit.SECONDS));
+            fail();
+        } catch (TimedOutException e) {
+            // ok
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals("done", CoroutineScope.withTimeout(5, TimeUnit.SECONDS, () -> "done"));
+    }
+    
+    @Test
+    public void finishedChildrenAreNotReferenced() throws InterruptedException {
+        CoroutineScope scope = new CoroutineScope(dispatcher);
+        WeakReference<CoRunnable> child = new WeakReference<>(scope.start(() -> {
+            Coroutine.scheduler.sleep(10, TimeUnit.MILLISECONDS);
+        }));
+        scope.join();
+        for (int i = 0; i < 50 && child.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(child.get());
+        // still usable afterwards
+        scope.start(() -> {});
+        scope.join();
+    }
+    
+    @Test
+    public void cancelledReceiverDoesNotTakeValues() {
+        Channel<String> channel = Channel.rendezvous();
+        CoSupplier<String> receiver = Coroutine.start(dispatcher, () -> channel.receive());
+        Coroutine.scheduler.sleep(20, TimeUnit.MILLISECONDS);
+        receiver.cancel();
+        try {
+            receiver.join();
+            fail();
+        } catch (CancelledException e) {
+            // ok
+        }
+        assertFalse(channel.trySend("lost"));
+    }
+}
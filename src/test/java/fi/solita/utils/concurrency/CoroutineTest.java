@@ -2,6 +2,7 @@ package fi.solita.utils.concurrency;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
@@ -11,12 +12,18 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.junit.Assert;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 import reactor.blockhound.BlockingOperationError;
 import reactor.core.scheduler.Schedulers;
 
 public class CoroutineTest {
+    @BeforeClass
+    public static void installBlockingDetection() {
+        Coroutine.installBlockingDetection();
+    }
+    
     @Test
     public void blockHoundWorks() throws InterruptedException, TimeoutException {
         try {
@@ -291,6 +298,29 @@ public class CoroutineTest {
         }).join();
     }
     
+    @Test
+    public void startedCoroutineKeepsWhatItYieldedBeforeTheFirstResume() {
+        Coroutine.start(() -> {
+            for (int round = 0; round < 100; ++round) {
+                CoSupplier<Integer> started = new CoSupplier<Integer>() {
+                    public Integer get() {
+                        yield_(1);
+                        yield_(2);
+                        return 3;
+                    }
+                }.start();
+                if (round % 2 == 0) {
+                    // lets the body run into its first yield before resuming
+                    Coroutine.scheduler.sleep(1, TimeUnit.MILLISECONDS);
+                }
+                assertEquals(1, (int) started.resume());
+                assertEquals(2, (int) started.resume());
+                assertEquals(3, (int) started.join());
+                assertTrue(started.isFinished());
+            }
+        }).join();
+    }
+    
     Generator<String> fetch() {
         return new Generator<String>() {
             public String get() {
@@ -315,4 +345,38 @@ public class CoroutineTest {
         
         assertEquals(List.of("hello","hello"), data);
     }
+    
+    @Test
+    public void yieldAndResumeDoNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int warmup = 20_000;
+        int measured = 10_000;
+        long[] allocated = new long[1];
+        Coroutine.start(() -> {
+            long[] generatorThread = new long[1];
+            Generator<Integer> generator = new Generator<>() {
+                @Override
+                public Integer get() {
+                    generatorThread[0] = Thread.currentThread().getId();
+                    for (int i = 0; i < warmup + measured; ++i) {
+                        yield_(1);
+                    }
+                    return 0;
+                }
+            };
+            long self = Thread.currentThread().getId();
+            for (int i = 0; i < warmup; ++i) {
+                generator.resume();
+            }
+            long before = threads.getThreadAllocatedBytes(self) + threads.getThreadAllocatedBytes(generatorThread[0]);
+            for (int i = 0; i < measured; ++i) {
+                generator.resume();
+            }
+            long after = threads.getThreadAllocatedBytes(self) + threads.getThreadAllocatedBytes(generatorThread[0]);
+            allocated[0] = after - before;
+            generator.resume();
+        }).join();
+        
+        assertTrue("allocated " + allocated[0] + " bytes for " + measured + " round trips", allocated[0] < measured);
+    }
 }
@@ -0,0 +1,103 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class GeneratorCombinatorsTest {
+    static Generator<Integer> naturals(AtomicInteger produced) {
+        return new Generator<>() {
+            @Override
+            public Integer get() {
+                for (int i = 0;; ++i) {
+                    produced.incrementAndGet();
+                    yield_(i);
+                }
+            }
+        };
+    }
+
+    static <T> List<T> toList(Iterable<T> it) {
+        List<T> ret = new ArrayList<>();
+        it.forEach(ret::add);
+        return ret;
+    }
+
+    @Test
+    public void statelessStagesRunInsideTheSourceBody() {
+        Generator<Integer> source = GeneratorTest.range(0, 6, new AtomicInteger());
+        List<Boolean> inSource = new ArrayList<>();
+        Generator<String> g = source
+            .filter(i -> i % 2 == 0)
+            .map(i -> {
+                inSource.add(Coroutine.current() == source);
+                return i * 10;
+            })
+            .flatMap(i -> List.of(i + "a", i + "b"));
+        assertEquals(List.of("0a", "0b", "20a", "20b", "40a", "40b"), toList(g));
+        assertEquals(List.of(true, true, true), inSource);
+        assertTrue(source.isFinished());
+    }
+
+    @Test
+    public void takeStopsAndCancelsTheSource() {
+        AtomicInteger produced = new AtomicInteger();
+        Generator<Integer> source = naturals(produced);
+        assertEquals(List.of(0, 2, 4), toList(source.map(i -> i * 2).take(3)));
+        assertEquals(3, produced.get());
+        assertTrue(source.isCancelled());
+    }
+
+    @Test
+    public void takeNothingNeverStartsTheSource() {
+        Generator<Integer> source = naturals(new AtomicInteger());
+        assertFalse(source.take(0).iterator().hasNext());
+        assertFalse(source.isStarted());
+    }
+
+    @Test
+    public void zipPairsUntilEitherRunsOut() {
+        Generator<Integer> longer = naturals(new AtomicInteger());
+        Generator<String> zipped = GeneratorTest.range(0, 3, new AtomicInteger())
+            .zip(longer.map(i -> i * 100), (a, b) -> a + ":" + b);
+        assertEquals(List.of("0:0", "1:100", "2:200"), zipped.stream().collect(Collectors.toList()));
+        assertTrue(longer.isCancelled());
+    }
+
+    @Test
+    public void windowsAndStagesAfterThemRunInTheConsumer() {
+        Generator<Integer> g = GeneratorTest.range(0, 7, new AtomicInteger())
+            .window(3)
+            .map(List::size)
+            .filter(size -> size > 0);
+        assertEquals(List.of(3, 3, 1), toList(g));
+    }
+
+    @Test
+    public void fusedStagesPrefetchInChunks() {
+        AtomicInteger produced = new AtomicInteger();
+        Iterator<Integer> it = naturals(produced).filter(i -> i % 3 == 0).iterator(4);
+        assertEquals(Integer.valueOf(0), it.next());
+        // a chunk is 4 values passing the filter, so 10 produced
+        assertEquals(10, produced.get());
+        assertEquals(Integer.valueOf(3), it.next());
+        assertEquals(10, produced.get());
+    }
+
+    @Test
+    public void elementsCanBeTakenOverOnlyOnce() {
+        Generator<Integer> source = naturals(new AtomicInteger());
+        source.map(i -> i);
+        try {
+            source.filter(i -> true);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class GeneratorTest {
+    static Generator<Integer> range(int from, int to, AtomicInteger produced) {
+        return new Generator<>() {
+            @Override
+            public Integer get() {
+                for (int i = from; i < to; ++i) {
+                    produced.incrementAndGet();
+                    yield_(i);
+                }
+                return -1;
+            }
+        };
+    }
+    
+    @Test
+    public void iteratesYieldedValuesButNotTheReturnValue() {
+        List<Integer> values = new ArrayList<>();
+        for (Integer i : range(0, 5, new AtomicInteger())) {
+            values.add(i);
+        }
+        assertEquals(List.of(0, 1, 2, 3, 4), values);
+    }
+    
+    @Test
+    public void generatorWhichYieldsNothingIsEmpty() {
+        assertFalse(range(0, 0, new AtomicInteger()).iterator().hasNext());
+    }
+    
+    @Test
+    public void streamsInsideCoroutine() {
+        List<Integer> values = Coroutine.start(() ->
+            range(0, 5, new AtomicInteger()).stream().map(i -> i * 2).collect(Collectors.toList())
+        ).join();
+        assertEquals(List.of(0, 2, 4, 6, 8), values);
+    }
+    
+    @Test
+    public void startedGeneratorDoesNotLoseItsFirstValue() {
+        for (int round = 0; round < 100; ++round) {
+            Generator<Integer> started = range(0, 2, new AtomicInteger()).start();
+            assertEquals(List.of(0, 1), started.stream().collect(Collectors.toList()));
+        }
+    }
+    
+    @Test
+    public void prefetchingRunsAheadByChunk() {
+        AtomicInteger produced = new AtomicInteger();
+        List<Integer> producedWhenConsumed = new ArrayList<>();
+        List<Integer> values = new ArrayList<>();
+        Iterator<Integer> it = range(0, 10, produced).iterator(4);
+        while (it.hasNext()) {
+            values.add(it.next());
+            producedWhenConsumed.add(produced.get());
+        }
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), values);
+        assertEquals(List.of(4, 4, 4, 4, 8, 8, 8, 8, 10, 10), producedWhenConsumed);
+    }
+    
+    @Test
+    public void prefetchingStream() {
+        assertEquals(55, range(1, 11, new AtomicInteger()).stream(3).mapToInt(i -> i).sum());
+    }
+}
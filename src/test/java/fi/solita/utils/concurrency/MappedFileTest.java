@@ -0,0 +1,96 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MappedFileTest {
+    @BeforeClass
+    public static void installBlockingDetection() {
+        Coroutine.installBlockingDetection();
+    }
+    
+    private static Path file(String content) throws IOException {
+        Path file = Files.createTempFile("MappedFileTest", ".txt");
+        file.toFile().deleteOnExit();
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static List<String> decode(Generator<ByteBuffer> generator) {
+        return Coroutine.start(() -> generator.stream().map(b -> StandardCharsets.UTF_8.decode(b).toString()).collect(Collectors.toList())).join();
+    }
+    
+    @Test
+    public void linesAcrossWindows() throws IOException {
+        List<String> lines = new ArrayList<>();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 500; ++i) {
+            String line = i % 50 == 0 ? "a line longer than a single small window " + i : i % 7 == 0 ? "" : "line " + i;
+            lines.add(line);
+            content.append(line).append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        lines.add("no newline at the end");
+        content.append("no newline at the end");
+        Path file = file(content.toString());
+        
+        assertEquals(lines, decode(MappedFile.lines(file, 16)));
+        assertEquals(lines, decode(MappedFile.lines(file)));
+    }
+    
+    @Test
+    public void emptyFileHasNoLines() throws IOException {
+        assertEquals(List.of(), decode(MappedFile.lines(file(""))));
+    }
+    
+    @Test
+    public void slicesAreReadOnlyViewsOfTheMapping() throws IOException {
+        Generator<ByteBuffer> lines = MappedFile.lines(file("abc\ndef\n"));
+        Coroutine.start(() -> {
+            try {
+                ByteBuffer line = lines.iterator().next();
+                assertTrue(line.isReadOnly());
+                assertTrue(line.isDirect());
+                assertEquals(3, line.remaining());
+            } finally {
+                // unwinds the body, closing its channel
+                lines.close();
+            }
+            try {
+                lines.join();
+                fail();
+            } catch (CancelledException e) {
+                // ok
+            }
+        }).join();
+        assertTrue(lines.isFinished());
+    }
+    
+    @Test
+    public void fixedSizeRecords() throws IOException {
+        Path file = file("aaabbbcccdddee");
+        assertEquals(List.of("aaa", "bbb", "ccc", "ddd", "ee"), decode(MappedFile.records(file, 3, 7)));
+    }
+    
+    @Test
+    public void findsNewlineAtEveryPosition() {
+        for (int pos = 0; pos < 20; ++pos) {
+            ByteBuffer buffer = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < 20; ++i) {
+                // bytes around \n which could fool a sloppy zero byte check
+                buffer.put(i, (byte) (i < pos ? 0x0B : 0x0A));
+            }
+            assertEquals(pos, MappedFile.indexOfNewline(buffer, 0, 20));
+        }
+    }
+}
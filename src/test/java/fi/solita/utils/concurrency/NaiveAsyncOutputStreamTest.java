@@ -0,0 +1,154 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class NaiveAsyncOutputStreamTest {
+    private static byte[] content(int size) {
+        byte[] ret = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            ret[i] = (byte) i;
+        }
+        return ret;
+    }
+    
+    private static void writeInPieces(OutputStream out, byte[] data) throws IOException {
+        int i = 0;
+        while (i < data.length) {
+            if (i % 7 == 0) {
+                out.write(data[i++]);
+            } else {
+                int len = Math.min(data.length - i, i % 13);
+                out.write(data, i, len);
+                i += len;
+            }
+        }
+    }
+    
+    @Test
+    public void preservesOrderAcrossRingWrapAround() throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        byte[] data = content(10_000);
+        try (NaiveAsyncOutputStream out = new NaiveAsyncOutputStream(target, 16)) {
+            writeInPieces(out, data);
+            out.flush();
+            assertArrayEquals(data, target.toByteArray());
+        }
+    }
+    
+    @Test
+    public void writesToFileThroughChannel() throws IOException {
+        File file = File.createTempFile("NaiveAsyncOutputStreamTest", ".bin");
+        file.deleteOnExit();
+        byte[] data = content(100_000);
+        try (FileOutputStream target = new FileOutputStream(file);
+             NaiveAsyncOutputStream out = new NaiveAsyncOutputStream(target, 1024)) {
+            writeInPieces(out, data);
+        }
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+    }
+    
+    // blocks writing out until released
+    private static OutputStream slow(CountDownLatch release, ByteArrayOutputStream written) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw new UnsupportedOperationException();
+            }
+            @Override
+            public void write(byte[] b, int off, int len) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                written.write(b, off, len);
+            }
+        };
+    }
+    
+    @Test
+    public void fullRingSuspendsWriter() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream slow = slow(release, written);
+        byte[] data = content(100);
+        AtomicBoolean finished = new AtomicBoolean();
+        try (NaiveAsyncOutputStream out = new NaiveAsyncOutputStream(slow, 32)) {
+            CoRunnable writer = Coroutine.start(() -> {
+                try {
+                    out.write(data);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                finished.set(true);
+            });
+            TimeUnit.MILLISECONDS.sleep(100);
+            assertFalse(finished.get());
+            
+            release.countDown();
+            writer.join();
+            out.flush();
+            assertArrayEquals(data, written.toByteArray());
+        }
+    }
+    
+    @Test(expected = IOException.class)
+    public void writingAfterCloseFails() throws IOException {
+        NaiveAsyncOutputStream out = new NaiveAsyncOutputStream(new ByteArrayOutputStream());
+        out.close();
+        out.write(1);
+    }
+    
+    @Test
+    public void printingWritersSuspendWithoutBlockingTheCarrier() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        PrintStream print = new NaiveAsyncPrintStream(new NaiveAsyncOutputStream(slow(release, written), 16));
+        SingleCarrierDispatcher single = new SingleCarrierDispatcher();
+        CoRunnable a = Coroutine.start(single, () -> print.println("a line longer than the ring"));
+        CoRunnable b = Coroutine.start(single, () -> { print.printf("%s%n", "another one"); });
+        // both wait, one for room and one for its turn, yet others still get the carrier
+        CoSupplier<String> other = Coroutine.start(single, () -> "ran");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!other.isFinished() && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        assertTrue(other.isFinished());
+        assertFalse(a.isFinished() && b.isFinished());
+        
+        release.countDown();
+        a.join();
+        b.join();
+        print.flush();
+        String out = written.toString();
+        String nl = System.lineSeparator();
+        assertTrue(out, out.equals("a line longer than the ring" + nl + "another one" + nl) || out.equals("another one" + nl + "a line longer than the ring" + nl));
+    }
+    
+    @Test
+    public void closingLeavesTheTargetOpen() throws IOException {
+        AtomicBoolean closed = new AtomicBoolean();
+        OutputStream target = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        new NaiveAsyncOutputStream(target).close();
+        assertFalse(closed.get());
+    }
+}
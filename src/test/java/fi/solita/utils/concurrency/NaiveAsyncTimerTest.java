@@ -0,0 +1,76 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class NaiveAsyncTimerTest {
+    private final NaiveAsyncTimer timer = new NaiveAsyncTimer();
+    
+    @Test
+    public void sleepersWakeUpInDeadlineOrder() {
+        List<Integer> woken = new CopyOnWriteArrayList<>();
+        Coroutine.start(() -> {
+            CoRunnable slow = Coroutine.start(() -> {
+                timer.sleep(60, TimeUnit.MILLISECONDS);
+                woken.add(60);
+            });
+            CoRunnable fast = Coroutine.start(() -> {
+                timer.sleep(10, TimeUnit.MILLISECONDS);
+                woken.add(10);
+            });
+            CoRunnable far = Coroutine.start(() -> {
+                // lands on the second level of the wheel
+                timer.sleepUntil(Instant.now().plusMillis(150));
+                woken.add(150);
+            });
+            slow.join();
+            fast.join();
+            far.join();
+        }).join();
+        
+        assertEquals(List.of(10, 60, 150), woken);
+    }
+    
+    @Test
+    public void sleepDoesNotWakeUpEarly() {
+        long start = System.nanoTime();
+        Coroutine.start(() -> timer.sleep(100, TimeUnit.MILLISECONDS)).join();
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+    
+    @Test
+    public void cancelledTaskDoesNotRun() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        NaiveAsyncTimer.Handle cancelled = timer.schedule(20, TimeUnit.MILLISECONDS, runs::incrementAndGet);
+        NaiveAsyncTimer.Handle kept = timer.schedule(50, TimeUnit.MILLISECONDS, done::countDown);
+        
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        
+        assertEquals(0, runs.get());
+        assertTrue(cancelled.isCancelled());
+        assertTrue(kept.isExpired());
+        assertFalse(kept.cancel());
+    }
+    
+    @Test
+    public void manyTimersInTheSameTick() throws InterruptedException {
+        int count = 100_000;
+        CountDownLatch fired = new CountDownLatch(count);
+        long from = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            timer.schedule(from, 30 + i % 3, TimeUnit.MILLISECONDS, fired::countDown);
+        }
+        assertTrue(fired.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,144 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class PrimitiveGeneratorTest {
+    static IntGenerator range(int from, int to) {
+        return new IntGenerator() {
+            @Override
+            public void run() {
+                for (int i = from; i < to; ++i) {
+                    yieldInt(i);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void resumesWithYieldedInts() {
+        Coroutine.start(() -> {
+            IntGenerator g = range(42, 44);
+            assertEquals(42, g.resumeInt());
+            assertEquals(43, g.resumeInt());
+            try {
+                g.resumeInt();
+                fail();
+            } catch (NoSuchElementException expected) {
+            }
+            assertTrue(g.isFinished());
+        }).join();
+    }
+
+    @Test
+    public void streamsInts() {
+        assertEquals(4950, range(0, 100).stream().sum());
+        assertEquals(0, range(0, 0).stream().count());
+    }
+
+    @Test
+    public void streamsLongsAndDoubles() {
+        LongGenerator longs = new LongGenerator() {
+            @Override
+            public void run() {
+                yieldLong(Long.MAX_VALUE);
+                yieldLong(Long.MIN_VALUE);
+            }
+        };
+        assertEquals("9223372036854775807,-9223372036854775808",
+            longs.stream().mapToObj(Long::toString).collect(Collectors.joining(",")));
+        DoubleGenerator doubles = new DoubleGenerator() {
+            @Override
+            public void run() {
+                for (double d = 0.5; d < 2; d += 0.5) {
+                    yieldDouble(d);
+                }
+            }
+        };
+        assertEquals(3.0, doubles.stream().sum(), 0.0);
+    }
+
+    @Test
+    public void coFunctionTakesAndReturnsPrimitives() {
+        Coroutine.start(() -> {
+            LongCoFunction sum = new LongCoFunction() {
+                @Override
+                public long applyAsLong(long in) {
+                    long acc = in;
+                    while (in != 0) {
+                        in = yieldLong(acc);
+                        acc += in;
+                    }
+                    return -acc;
+                }
+            };
+            assertEquals(1, sum.resumeLong(1));
+            assertEquals(3, sum.resumeLong(2));
+            assertEquals(-3, sum.resumeLong(0));
+            assertEquals(-3, sum.join());
+        }).join();
+    }
+
+    @Test
+    public void coFunctionGetsItsArgumentFromStartOrFirstResume() {
+        IntCoFunction twice = new IntCoFunction() {
+            @Override
+            public int applyAsInt(int in) {
+                return 2 * in;
+            }
+        };
+        assertEquals(42, twice.start(21).join());
+        Coroutine.start(() -> {
+            DoubleCoFunction half = new DoubleCoFunction() {
+                @Override
+                public double applyAsDouble(double in) {
+                    return yieldDouble(in / 2) / 2;
+                }
+            };
+            assertEquals(1.5, half.resumeDouble(3), 0.0);
+            assertEquals(2.5, half.resumeDouble(5), 0.0);
+            assertTrue(half.isFinished());
+        }).join();
+    }
+
+    @Test
+    public void resumingDoesNotBox() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int warmup = 20_000;
+        int measured = 10_000;
+        long[] allocated = new long[1];
+        Coroutine.start(() -> {
+            long[] generatorThread = new long[1];
+            // well outside the Integer cache, so boxing would allocate
+            IntGenerator g = new IntGenerator() {
+                @Override
+                public void run() {
+                    generatorThread[0] = Thread.currentThread().getId();
+                    for (int i = 0; i < warmup + measured; ++i) {
+                        yieldInt(1_000_000 + i);
+                    }
+                }
+            };
+            long self = Thread.currentThread().getId();
+            long sum = 0;
+            for (int i = 0; i < warmup; ++i) {
+                sum += g.resumeInt();
+            }
+            long before = threads.getThreadAllocatedBytes(self) + threads.getThreadAllocatedBytes(generatorThread[0]);
+            for (int i = 0; i < measured; ++i) {
+                sum += g.resumeInt();
+            }
+            long after = threads.getThreadAllocatedBytes(self) + threads.getThreadAllocatedBytes(generatorThread[0]);
+            allocated[0] = after - before;
+            assertTrue(sum > 0);
+            g.cancel();
+        }).join();
+
+        assertTrue("allocated " + allocated[0] + " bytes for " + measured + " ints", allocated[0] < measured);
+    }
+}
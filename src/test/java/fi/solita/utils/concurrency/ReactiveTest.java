@@ -0,0 +1,145 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+public class ReactiveTest {
+    private final SingleCarrierDispatcher dispatcher = new SingleCarrierDispatcher();
+
+    @Test
+    public void awaitLeavesCarrierFree() {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CoSupplier<String> waiter = Coroutine.start(dispatcher, () -> Coroutine.await(future));
+        // would never run if the waiter held the only carrier
+        Coroutine.start(dispatcher, () -> {
+            future.complete("done");
+        });
+        assertEquals("done", waiter.join());
+    }
+
+    @Test
+    public void awaitFailsLikeJoin() {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CoSupplier<String> waiter = Coroutine.start(dispatcher, () -> {
+            try {
+                Coroutine.await(future);
+                return "no failure";
+            } catch (CompletionException e) {
+                return e.getCause().getMessage();
+            }
+        });
+        future.completeExceptionally(new IllegalStateException("failed"));
+        assertEquals("failed", waiter.join());
+    }
+
+    @Test
+    public void awaitMono() {
+        assertEquals("delayed", Coroutine.start(dispatcher, () -> Reactive.await(Mono.delay(Duration.ofMillis(10)).map(x -> "delayed"))).join());
+        assertNull(Coroutine.start(dispatcher, () -> Reactive.await(Mono.empty())).join());
+        assertEquals("failed", Coroutine.start(dispatcher, () -> {
+            try {
+                return Reactive.await(Mono.error(new IllegalStateException("failed")));
+            } catch (IllegalStateException e) {
+                return e.getMessage();
+            }
+        }).join());
+    }
+
+    @Test
+    public void fluxResumesGeneratorOnDemand() {
+        AtomicInteger resumes = new AtomicInteger();
+        Generator<Integer> g = new Generator<Integer>() {
+            @Override
+            public Integer get() {
+                for (int i = 0; true; ++i) {
+                    resumes.incrementAndGet();
+                    yield_(i);
+                }
+            }
+        };
+        List<Integer> received = new ArrayList<>();
+        BaseSubscriber<Integer> subscriber = new BaseSubscriber<>() {
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+                request(2);
+            }
+            @Override
+            protected void hookOnNext(Integer value) {
+                received.add(value);
+            }
+        };
+        Reactive.toFlux(g).subscribe(subscriber);
+        assertEquals(List.of(0, 1), received);
+        assertEquals(2, resumes.get());
+
+        subscriber.request(3);
+        assertEquals(List.of(0, 1, 2, 3, 4), received);
+        assertEquals(5, resumes.get());
+
+        subscriber.cancel();
+        assertTrue(g.isCancelled());
+        try {
+            g.join();
+            fail();
+        } catch (CancelledException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void fluxCompletesWithGenerator() {
+        Generator<Integer> g = new Generator<Integer>() {
+            @Override
+            public Integer get() {
+                for (int i = 0; i < 5; ++i) {
+                    yield_(i);
+                }
+                return null;
+            }
+        };
+        assertEquals(List.of(0, 1, 2, 3, 4), Reactive.toFlux(g).collectList().block());
+    }
+
+    @Test
+    public void sourceIsBoundedByPrefetch() {
+        AtomicLong maxRequest = new AtomicLong();
+        Flux<Integer> flux = Flux.range(0, 100)
+            .doOnRequest(n -> maxRequest.accumulateAndGet(n, Math::max))
+            .publishOn(Schedulers.parallel(), 4);
+        int sum = Coroutine.start(dispatcher, () -> {
+            int s = 0;
+            try (Reactive.Source<Integer> source = Reactive.toSource(flux, 8)) {
+                while (source.hasNext()) {
+                    s += source.next();
+                }
+            }
+            return s;
+        }).join();
+        assertEquals(4950, sum);
+        assertTrue(maxRequest.get() <= 4);
+
+        Reactive.Source<Integer> failing = Reactive.toSource(Flux.concat(Flux.just(1), Flux.error(new IllegalStateException("failed"))), 8);
+        assertEquals(1, (int) failing.next());
+        try {
+            failing.hasNext();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+    }
+}
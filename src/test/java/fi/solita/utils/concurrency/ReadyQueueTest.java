@@ -0,0 +1,117 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import fi.solita.utils.concurrency.Coroutine.Priority;
+
+public class ReadyQueueTest {
+    private static CoRunnable coroutine(String name, Priority priority) {
+        CoRunnable c = new CoRunnable(name) {
+            @Override
+            public void run() {
+            }
+        };
+        c.setPriority(priority);
+        return c;
+    }
+
+    private static List<String> drain(ReadyQueue queue) {
+        List<String> ret = new ArrayList<>();
+        for (Coroutine<?,?> c = queue.poll(); c != null; c = queue.poll()) {
+            ret.add(c.toString().replaceAll(".*:", ""));
+        }
+        return ret;
+    }
+
+    @Test
+    public void higherPrioritiesGoFirst() {
+        ReadyQueue queue = new ReadyQueue();
+        queue.add(coroutine("low", Priority.LOW));
+        queue.add(coroutine("normal1", Priority.NORMAL));
+        queue.add(coroutine("high", Priority.HIGH));
+        queue.add(coroutine("normal2", Priority.NORMAL));
+        assertEquals(List.of("high", "normal1", "normal2", "low"), drain(queue));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void earliestDeadlineFirstWithinPriority() {
+        ReadyQueue queue = new ReadyQueue();
+        CoRunnable none = coroutine("none", Priority.NORMAL);
+        CoRunnable late = coroutine("late", Priority.NORMAL);
+        late.setDeadline(200, TimeUnit.MILLISECONDS);
+        CoRunnable early = coroutine("early", Priority.NORMAL);
+        early.setDeadline(100, TimeUnit.MILLISECONDS);
+        CoRunnable low = coroutine("low", Priority.LOW);
+        low.setDeadline(0, TimeUnit.MILLISECONDS);
+        queue.add(none);
+        queue.add(low);
+        queue.add(late);
+        queue.add(early);
+        assertEquals(List.of("early", "late", "none", "low"), drain(queue));
+    }
+
+    @Test
+    public void starvedCoroutinesGoFirst() {
+        ReadyQueue queue = new ReadyQueue();
+        CoRunnable low = coroutine("low", Priority.LOW);
+        queue.add(low);
+        queue.add(coroutine("high", Priority.HIGH));
+        low.enqueuedAt = System.nanoTime() - ReadyQueue.MAX_WAIT_NANOS - 1;
+        assertEquals(List.of("low", "high"), drain(queue));
+    }
+
+    @Test
+    public void childrenInheritPriorityAndDeadline() {
+        CoSupplier<Coroutine<?,?>> parent = new CoSupplier<>() {
+            @Override
+            public Coroutine<?,?> get() {
+                return Coroutine.start(() -> {});
+            }
+        };
+        parent.setPriority(Priority.HIGH);
+        parent.setDeadline(1, TimeUnit.SECONDS);
+        Coroutine<?,?> child = parent.start(new SingleCarrierDispatcher()).join();
+        assertEquals(Priority.HIGH, child.getPriority());
+        assertTrue(child.hasDeadline());
+        assertEquals(parent.deadline(), child.deadline());
+        assertEquals(Priority.NORMAL, Coroutine.start(new SingleCarrierDispatcher(), () -> {}).getPriority());
+    }
+
+    @Test
+    public void queuedCoroutinesStartByPriority() {
+        SingleCarrierDispatcher dispatcher = new SingleCarrierDispatcher();
+        Queue<Priority> started = new ConcurrentLinkedQueue<>();
+        Coroutine.start(dispatcher, () -> {
+            // the carrier is busy with this one until it joins, so the children queue up
+            List<CoRunnable> children = new ArrayList<>();
+            for (Priority p : List.of(Priority.LOW, Priority.NORMAL, Priority.HIGH)) {
+                CoRunnable c = new CoRunnable() {
+                    @Override
+                    public void run() {
+                        started.add(p);
+                    }
+                };
+                c.setPriority(p);
+                children.add(c.start());
+            }
+            for (CoRunnable c : children) {
+                c.join();
+            }
+        }).join();
+        assertEquals(List.of(Priority.HIGH, Priority.NORMAL, Priority.LOW), new ArrayList<>(started));
+    }
+
+    @Test(expected = AlreadyStartedException.class)
+    public void priorityIsFixedOnceStarted() {
+        Coroutine.start(new SingleCarrierDispatcher(), () -> {}).setPriority(Priority.HIGH);
+    }
+}
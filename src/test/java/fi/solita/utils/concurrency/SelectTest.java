@@ -0,0 +1,131 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SelectTest {
+    static Generator<String> after(long millis, String value) {
+        return new Generator<>() {
+            @Override
+            public String get() {
+                Coroutine.scheduler.sleep(millis, TimeUnit.MILLISECONDS);
+                yield_(value);
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void firstCoroutineToFinishWins() {
+        Coroutine.start(() -> {
+            CoSupplier<String> slow = Coroutine.start(() -> {
+                Coroutine.scheduler.sleep(2, TimeUnit.SECONDS);
+                return "slow";
+            });
+            CoSupplier<String> fast = Coroutine.start(() -> {
+                Coroutine.scheduler.sleep(10, TimeUnit.MILLISECONDS);
+                return "fast";
+            });
+            String ret = new Select<String>()
+                .onJoin(slow, s -> s)
+                .onJoin(fast, s -> s + "!")
+                .select();
+            assertEquals("fast!", ret);
+            assertFalse(slow.isFinished());
+            slow.cancel();
+        }).join();
+    }
+
+    @Test
+    public void losingGeneratorsKeepTheirValues() {
+        Coroutine.start(() -> {
+            Generator<String> a = after(200, "a");
+            Generator<String> b = after(0, "b");
+            Select<String> select = new Select<String>()
+                .onNext(a, s -> s)
+                .onNext(b, s -> s);
+            assertEquals("b", select.select());
+            assertEquals("a", select.select());
+            try {
+                select.select();
+                fail();
+            } catch (NoSuchElementException expected) {
+            }
+        }).join();
+    }
+
+    @Test
+    public void receivesFromTheFirstChannelWithAValue() {
+        Coroutine.start(() -> {
+            Channel<Integer> quiet = Channel.unbounded();
+            Channel<Integer> busy = Channel.rendezvous();
+            Coroutine.start(() -> {
+                Coroutine.scheduler.sleep(10, TimeUnit.MILLISECONDS);
+                busy.send(42);
+            });
+            Select<Integer> select = new Select<Integer>()
+                .onReceive(quiet, i -> -i)
+                .onReceive(busy, i -> i);
+            assertEquals(42, (int) select.select());
+            // already there, so the first arm goes first
+            quiet.send(1);
+            busy.trySend(2);
+            assertEquals(-1, (int) select.select());
+            assertNull(busy.tryReceive());
+        }).join();
+    }
+
+    @Test
+    public void timeoutWhenNothingIsReady() {
+        Coroutine.start(() -> {
+            Channel<String> channel = Channel.unbounded();
+            Generator<String> never = after(5_000, "never");
+            long start = System.nanoTime();
+            String ret = new Select<String>()
+                .onReceive(channel, s -> s)
+                .onNext(never, s -> s)
+                .onTimeout(50, TimeUnit.MILLISECONDS, () -> "timeout")
+                .select();
+            assertEquals("timeout", ret);
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+            channel.send("later");
+            assertEquals("later", channel.receive());
+            never.cancel();
+        }).join();
+    }
+
+    @Test
+    public void failsOnceAllSourcesHaveEnded() {
+        Coroutine.start(() -> {
+            Channel<String> closed = Channel.unbounded();
+            closed.close();
+            Generator<String> g = after(10, "only");
+            Select<String> select = new Select<String>()
+                .onReceive(closed, s -> s)
+                .onNext(g, s -> s);
+            assertEquals("only", select.select());
+            try {
+                select.select();
+                fail();
+            } catch (NoSuchElementException expected) {
+            }
+        }).join();
+    }
+
+    @Test
+    public void worksOutsideCoroutines() {
+        Channel<String> channel = Channel.unbounded();
+        Coroutine.start(() -> {
+            Coroutine.scheduler.sleep(10, TimeUnit.MILLISECONDS);
+            channel.send("value");
+        });
+        assertEquals("value", new Select<String>()
+            .onReceive(channel, s -> s)
+            .onTimeout(5, TimeUnit.SECONDS, () -> "timeout")
+            .select());
+    }
+}
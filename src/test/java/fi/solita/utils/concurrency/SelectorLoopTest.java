@@ -0,0 +1,160 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SelectorLoopTest {
+    private SelectorLoop loop;
+    private ServerSocketChannel server;
+    
+    @Before
+    public void setUp() throws IOException {
+        loop = new SelectorLoop();
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        loop.close();
+    }
+    
+    private interface IO<T> {
+        T run() throws IOException;
+    }
+    
+    private static <T> T unchecked(IO<T> io) {
+        try {
+            return io.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private String readAll(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (loop.read(channel, buffer) >= 0) {
+            // until the peer shuts down its output
+        }
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+    
+    @Test
+    public void echoesOverLoopback() {
+        int clients = 50;
+        List<String> replies = Coroutine.start(() -> unchecked(() -> {
+            CoSupplier<?> acceptor = Coroutine.start(() -> unchecked(() -> {
+                for (int i = 0; i < clients; ++i) {
+                    SocketChannel connection = loop.accept(server);
+                    Coroutine.start(() -> unchecked(() -> {
+                        try (SocketChannel c = connection) {
+                            loop.write(c, StandardCharsets.UTF_8.encode(readAll(c)));
+                        }
+                        return null;
+                    }));
+                }
+                return null;
+            }));
+            
+            List<CoSupplier<String>> requests = new ArrayList<>();
+            for (int i = 0; i < clients; ++i) {
+                String message = "hello " + i;
+                requests.add(Coroutine.start(() -> unchecked(() -> {
+                    try (SocketChannel c = SocketChannel.open()) {
+                        loop.connect(c, server.getLocalAddress());
+                        loop.write(c, StandardCharsets.UTF_8.encode(message));
+                        c.shutdownOutput();
+                        return readAll(c);
+                    }
+                })));
+            }
+            List<String> ret = new ArrayList<>();
+            for (CoSupplier<String> r : requests) {
+                ret.add(r.join());
+            }
+            acceptor.join();
+            return ret;
+        })).join();
+        
+        for (int i = 0; i < clients; ++i) {
+            assertEquals("hello " + i, replies.get(i));
+        }
+    }
+    
+    @Test
+    public void readSuspendsUntilDataArrives() {
+        String received = Coroutine.start(() -> unchecked(() -> {
+            CoSupplier<?> sender = Coroutine.start(() -> unchecked(() -> {
+                try (SocketChannel c = loop.accept(server)) {
+                    Coroutine.scheduler.sleep(50, TimeUnit.MILLISECONDS);
+                    loop.write(c, StandardCharsets.UTF_8.encode("late"));
+                }
+                return null;
+            }));
+            try (SocketChannel c = SocketChannel.open()) {
+                loop.connect(c, server.getLocalAddress());
+                String ret = readAll(c);
+                sender.join();
+                return ret;
+            }
+        })).join();
+        
+        assertEquals("late", received);
+    }
+    
+    @Test(expected = ClosedSelectorException.class)
+    public void closingFailsPendingOperations() {
+        Coroutine.start(() -> {
+            CoRunnable closer = Coroutine.start(() -> {
+                Coroutine.scheduler.sleep(50, TimeUnit.MILLISECONDS);
+                loop.close();
+            });
+            try {
+                unchecked(() -> loop.accept(server));
+            } finally {
+                closer.join();
+            }
+        }).join();
+    }
+    
+    @Test(expected = ClosedChannelException.class)
+    public void closingTheChannelFailsPendingRead() throws Throwable {
+        try {
+            Coroutine.start(() -> unchecked(() -> {
+                try (SocketChannel c = SocketChannel.open()) {
+                    loop.connect(c, server.getLocalAddress());
+                    CoSupplier<?> closer = Coroutine.start(() -> unchecked(() -> {
+                        Coroutine.scheduler.sleep(50, TimeUnit.MILLISECONDS);
+                        c.close();
+                        return null;
+                    }));
+                    try {
+                        return loop.read(c, ByteBuffer.allocate(16));
+                    } finally {
+                        closer.join();
+                    }
+                }
+            })).join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
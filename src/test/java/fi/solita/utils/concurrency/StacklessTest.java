@@ -0,0 +1,223 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.junit.Test;
+
+public class StacklessTest {
+    @Stackless
+    static class Range extends Generator<Integer> {
+        final int count;
+        
+        Range(int count) {
+            this.count = count;
+        }
+        
+        @Override
+        public Integer get() {
+            for (int i = 0; i < count; ++i) {
+                yield_(i);
+            }
+            return null;
+        }
+    }
+    
+    @Stackless
+    static class ControlFlow extends Generator<String> {
+        final List<String> words;
+        
+        ControlFlow(List<String> words) {
+            this.words = words;
+        }
+        
+        @Override
+        public String get() {
+            outer:
+            for (String w : words) {
+                if (w.isEmpty()) {
+                    continue;
+                } else if (w.equals("stop")) {
+                    break;
+                }
+                int n = 0;
+                while (true) {
+                    n++;
+                    if (n > 2) {
+                        continue outer;
+                    }
+                    yield_(w + n);
+                }
+            }
+            int[] numbers = {1, 2, 3};
+            for (int x : numbers) {
+                if (x == 2) {
+                    continue;
+                }
+                String s;
+                switch (x) {
+                    case 1: s = "one"; break;
+                    default: s = "many";
+                }
+                try {
+                    s = Integer.toString(x * 10) + s;
+                } catch (RuntimeException e) {
+                    s = "?";
+                }
+                yield_(s);
+            }
+            int k = 0;
+            do {
+                yield_("k" + k);
+            } while (++k < 2);
+            return "ignored";
+        }
+    }
+    
+    @Stackless
+    static class Naturals extends Generator<Long> {
+        @Override
+        public Long get() {
+            long n = 0;
+            while (true) {
+                yield_(n++);
+            }
+        }
+    }
+    
+    private static <T> List<T> toList(Iterator<T> it) {
+        List<T> ret = new ArrayList<>();
+        it.forEachRemaining(ret::add);
+        return ret;
+    }
+    
+    @Test
+    public void iteratesWithoutCoroutine() {
+        Range range = new StacklessTest_RangeStackless(5);
+        assertEquals(List.of(0, 1, 2, 3, 4), toList(range.iterator()));
+        assertFalse(range.isStarted());
+        assertTrue(range.isFinished());
+    }
+    
+    @Test
+    public void resumesWithPlainCalls() {
+        Range range = new StacklessTest_RangeStackless(2);
+        assertEquals(0, (int) range.resume());
+        assertEquals(1, (int) range.resume());
+        assertNull(range.resume());
+        assertTrue(range.isFinished());
+        try {
+            range.resume();
+            fail();
+        } catch (AlreadyFinishedException e) {
+            // ok
+        }
+    }
+    
+    @Test
+    public void translatesControlFlowLikeTheCoroutine() {
+        List<String> words = List.of("a", "", "b", "stop", "c");
+        List<String> expected = List.of("a1", "a2", "b1", "b2", "10one", "30many", "k0", "k1");
+        Coroutine.start(new SingleCarrierDispatcher(), () -> {
+            assertEquals(expected, toList(new ControlFlow(words).iterator()));
+        }).join();
+        assertEquals(expected, toList(new StacklessTest_ControlFlowStackless(words).iterator()));
+    }
+    
+    @Test
+    public void infiniteGeneratorsStreamLazily() {
+        assertEquals(List.of(0l, 1l, 2l), new StacklessTest_NaturalsStackless().stream().limit(3).collect(Collectors.toList()));
+    }
+    
+    @Test
+    public void rejectsCapturedLocalsAndYieldsInsideTry() throws IOException {
+        String source = String.join("\n",
+            "import fi.solita.utils.concurrency.*;",
+            "@Stackless class Bad extends Generator<Runnable> {",
+            "    public Runnable get() {",
+            "        for (int i = 0; i < 2; ++i) {",
+            "            yield_(() -> System.out.println(i));",
+            "        }",
+            "        try {",
+            "            yield_(null);",
+            "        } finally {",
+            "        }",
+            "        return null;",
+            "    }",
+            "}");
+        List<String> errors = new ArrayList<>();
+        errors.addAll(compile(source.replace("try {\n            yield_(null);\n        } finally {\n        }", "")));
+        errors.addAll(compile(source.replace("() -> System.out.println(i)", "null")));
+        assertEquals(2, errors.size());
+        assertTrue(errors.get(0), errors.get(0).contains("local variable i is captured"));
+        assertTrue(errors.get(1), errors.get(1).contains("yield_ inside TRY is not supported"));
+    }
+    
+    @Test
+    public void generatedSourceIsLintCleanAndImportsOnlyWhatItUses() throws IOException {
+        String source = String.join("\n",
+            "import java.util.List;",
+            "import java.util.Map;",
+            "import java.util.concurrent.*;",
+            "import static java.lang.Math.max;",
+            "import static java.lang.Math.min;",
+            "import fi.solita.utils.concurrency.*;",
+            "@Stackless class Good extends Generator<Integer> {",
+            "    public Integer get() {",
+            "        List<Integer> values = List.of(1, 2);",
+            "        for (int i = 0; i < values.size(); ++i) {",
+            "            yield_(max(values.get(i), 0));",
+            "        }",
+            "        return null;",
+            "    }",
+            "}");
+        File out = Files.createTempDirectory("stackless").toFile();
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = compile(source, out, "-Xlint:all");
+        assertEquals(List.of(), diagnostics.stream()
+            .filter(d -> d.getKind() != Diagnostic.Kind.NOTE)
+            .map(d -> d.getMessage(null))
+            .collect(Collectors.toList()));
+        List<String> imports = Files.readAllLines(new File(out, "GoodStackless.java").toPath()).stream()
+            .filter(line -> line.startsWith("import"))
+            .collect(Collectors.toList());
+        assertEquals(List.of("import java.util.List;", "import static java.lang.Math.max;"), imports);
+    }
+    
+    private static List<String> compile(String source) throws IOException {
+        return compile(source, Files.createTempDirectory("stackless").toFile()).stream()
+            .filter(d -> d.getKind() == Diagnostic.Kind.ERROR)
+            .map(d -> d.getMessage(null))
+            .collect(Collectors.toList());
+    }
+    
+    private static List<Diagnostic<? extends JavaFileObject>> compile(String source, File out, String... options) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        String name = source.replaceFirst("(?s).*@Stackless class (\\w+).*", "$1");
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + name + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        List<String> all = new ArrayList<>(List.of("-d", out.getPath(), "-s", out.getPath(), "-classpath", System.getProperty("java.class.path")));
+        all.addAll(List.of(options));
+        compiler.getTask(null, null, diagnostics, all, null, List.of(file)).call();
+        return diagnostics.getDiagnostics();
+    }
+}
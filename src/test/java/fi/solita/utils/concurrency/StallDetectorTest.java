@@ -0,0 +1,52 @@
+package fi.solita.utils.concurrency;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StallDetectorTest {
+    private static void spin(long millis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (System.nanoTime() < deadline) {
+            // hog the carrier
+        }
+    }
+    
+    @Test
+    public void reportsCoroutineWhichDoesNotYield() {
+        SingleCarrierDispatcher dispatcher = new SingleCarrierDispatcher();
+        List<String> reports = new CopyOnWriteArrayList<>();
+        try (StallDetector detector = StallDetector.start(dispatcher, 50, TimeUnit.MILLISECONDS, reports::add)) {
+            Coroutine.start(dispatcher, () -> spin(500)).join();
+        }
+        assertEquals(1, reports.size());
+        assertTrue(reports.get(0), reports.get(0).contains("spin"));
+    }
+    
+    @Test
+    public void doesNotReportCoroutinesWhichYield() {
+        SingleCarrierDispatcher dispatcher = new SingleCarrierDispatcher();
+        List<String> reports = new CopyOnWriteArrayList<>();
+        try (StallDetector detector = StallDetector.start(dispatcher, 200, TimeUnit.MILLISECONDS, reports::add)) {
+            Coroutine.start(dispatcher, () -> {
+                CoRunnable c = new CoRunnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 20; ++i) {
+                            spin(10);
+                            yield_();
+                        }
+                    }
+                };
+                for (int i = 0; i < 20; ++i) {
+                    c.resume();
+                }
+            }).join();
+        }
+        assertEquals(List.of(), reports);
+    }
+}
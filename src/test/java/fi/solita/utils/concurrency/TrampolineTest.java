@@ -1,6 +1,9 @@
 package fi.solita.utils.concurrency;
 
+import static org.junit.Assert.*;
+
 import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -24,4 +27,54 @@ public class TrampolineTest {
     public void testWithTrampolining() {
         System.out.println(factorialWithTrampolining(50000, BigInteger.ONE).get());
     }
+    
+    @Test
+    public void finishesWithNull() {
+        assertNull(Trampoline.step(() -> Trampoline.finished(null)).get());
+        assertEquals("null", Trampoline.finished(null).map(String::valueOf).get());
+    }
+    
+    @Test
+    public void longMapChainsAreStackSafe() {
+        Trampoline<Integer> t = Trampoline.finished(0);
+        for (int i = 0; i < 1_000_000; ++i) {
+            t = t.map(x -> x + 1);
+        }
+        assertEquals(1_000_000, (int) t.get());
+    }
+    
+    static Trampoline<Long> sumTo(long n) {
+        // not a tail call: the addition waits for the recursion
+        return n == 0 ? Trampoline.finished(0l) :
+                        Trampoline.step(() -> sumTo(n - 1)).flatMap(s -> Trampoline.finished(s + n));
+    }
+    
+    @Test
+    public void recursionThroughFlatMapIsStackSafe() {
+        assertEquals(500_000_500_000l, (long) sumTo(1_000_000).get());
+    }
+    
+    @Test
+    public void yieldsEveryNSteps() {
+        AtomicInteger yields = new AtomicInteger();
+        long result = Coroutine.start(new SingleCarrierDispatcher(), () -> {
+            CoSupplier<Long> c = new CoSupplier<Long>() {
+                @Override
+                public Long get() {
+                    return sumTo(1000).get(100, () -> {
+                        yields.incrementAndGet();
+                        yield_(null);
+                    });
+                }
+            };
+            Long r = c.resume();
+            while (r == null) {
+                // a scheduler would run others here
+                r = c.resume();
+            }
+            return r;
+        }).join();
+        assertEquals(500_500, result);
+        assertTrue(yields.toString(), yields.get() >= 20);
+    }
 }